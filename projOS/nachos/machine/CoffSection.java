@@ -196,6 +196,53 @@ public class CoffSection {
 		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
 	}
 
+	/**
+	 * Load consecutive pages from this segment into physical memory, reading
+	 * them from the file in a single request.
+	 *
+	 * @param spn the page number within this segment of the first page.
+	 * @param ppns the physical page to load each page into.
+	 * @param count the number of pages to load.
+	 */
+	public void loadPages(int spn, int[] ppns, int count) {
+		Lib.assertTrue(file != null);
+
+		Lib.assertTrue(spn >= 0 && count >= 0 && spn + count <= numPages);
+
+		int pageSize = Processor.pageSize;
+		byte[] memory = Machine.processor().getMemory();
+		int[] offsets = new int[count];
+		int[] lengths = new int[count];
+		int total = 0;
+
+		for (int i = 0; i < count; i++) {
+			Lib.assertTrue(ppns[i] >= 0
+					&& ppns[i] < Machine.processor().getNumPhysPages());
+
+			offsets[i] = ppns[i] * pageSize;
+
+			if (!initialized)
+				lengths[i] = 0;
+			else if (spn + i == numPages - 1)
+				lengths[i] = size % pageSize;
+			else
+				lengths[i] = pageSize;
+
+			total += lengths[i];
+		}
+
+		if (total > 0) {
+			long startTime = Machine.timer().getTime();
+			Lib.assertTrue(file.read(contentOffset + spn * pageSize, memory,
+					offsets, lengths, count) == total);
+			Lib.assertTrue(Machine.timer().getTime() > startTime);
+		}
+
+		for (int i = 0; i < count; i++)
+			Arrays.fill(memory, offsets[i] + lengths[i], offsets[i] + pageSize,
+					(byte) 0);
+	}
+
 	/** The COFF object to which this section belongs. */
 	protected Coff coff;
 
@@ -39,4 +39,11 @@ public interface FileSystem {
 	 * @return <tt>int</tt> representing the count of open files.
 	 */
 	public int getOpenCount();
+
+	/**
+	 * Return the most files that can be open at once, across all processes.
+	 * 
+	 * @return the limit on open files.
+	 */
+	public int getMaxOpenFiles();
 }
@@ -4,9 +4,9 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +38,13 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program would
  * fail in real life, you should still write properly synchronized code.
+ * 
+ * <p>
+ * Pending interrupts are kept in a timing wheel: a circular array of
+ * <tt>wheelSize</tt> slots, each holding the interrupts due at times that are
+ * congruent to its index, in the order they are due. The time of the earliest
+ * pending interrupt is kept up to date, so checking for due interrupts on each
+ * tick takes constant time.
  */
 public final class Interrupt {
 	/**
@@ -52,7 +59,9 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		wheel = new PendingInterrupt[wheelSize];
+
+		idleSkip = Config.getBoolean("Interrupt.idleSkip", false);
 	}
 
 	/**
@@ -119,28 +128,78 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Called by the kernel, with interrupts disabled, when no thread is ready
+	 * to run. Ordinarily this does nothing, and the idle thread spins until an
+	 * interrupt makes a thread ready. If <tt>Interrupt.idleSkip</tt> is set,
+	 * the simulated time instead jumps to just before the next pending
+	 * interrupt, so that the tick made when interrupts are re-enabled
+	 * delivers it. The time skipped is counted in <tt>Stats.idleTicks</tt>.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		if (!idleSkip || nextTime == Long.MAX_VALUE)
+			return;
+
+		Stats stats = privilege.stats;
+
+		long skipped = nextTime - Stats.KernelTick - stats.totalTicks;
+		if (skipped <= 0)
+			return;
+
+		Lib.debug(dbgInt, "Idling until time = "
+				+ (stats.totalTicks + skipped));
+
+		stats.idleTicks += skipped;
+		stats.totalTicks += skipped;
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+		PendingInterrupt toOccur = allocate(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		// insert after every interrupt due at or before the same time, so
+		// that interrupts due together run in the order they were scheduled
+		int slot = (int) (time & (wheelSize - 1));
+		PendingInterrupt prev = null, next = wheel[slot];
+		while (next != null && next.time <= time) {
+			prev = next;
+			next = next.next;
+		}
+
+		toOccur.next = next;
+		if (prev == null)
+			wheel[slot] = toOccur;
+		else
+			prev.next = toOccur;
+
+		numPending++;
+		if (time < nextTime)
+			nextTime = time;
 	}
 
 	private void tick(boolean inKernelMode) {
+		tick(inKernelMode, 1);
+	}
+
+	private void tick(boolean inKernelMode, int count) {
+		Lib.assertTrue(count > 0);
+
 		Stats stats = privilege.stats;
 
 		if (inKernelMode) {
-			stats.kernelTicks += Stats.KernelTick;
-			stats.totalTicks += Stats.KernelTick;
+			stats.kernelTicks += count * Stats.KernelTick;
+			stats.totalTicks += count * Stats.KernelTick;
 		}
 		else {
-			stats.userTicks += Stats.UserTick;
-			stats.totalTicks += Stats.UserTick;
+			stats.userTicks += count * Stats.UserTick;
+			stats.totalTicks += count * Stats.UserTick;
 		}
 
 		if (Lib.test(dbgInt))
@@ -151,6 +210,80 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long nextPendingTime() {
+		return nextTime;
+	}
+
+	/**
+	 * Remove and return the earliest pending interrupt, and find the time of
+	 * the one after it.
+	 */
+	private PendingInterrupt removeFirst() {
+		Lib.assertTrue(numPending > 0);
+
+		long time = nextTime;
+		int slot = (int) (time & (wheelSize - 1));
+
+		PendingInterrupt first = wheel[slot];
+		Lib.assertTrue(first.time == time);
+
+		wheel[slot] = first.next;
+		first.next = null;
+		numPending--;
+
+		if (numPending == 0) {
+			nextTime = Long.MAX_VALUE;
+		}
+		else if (wheel[slot] == null || wheel[slot].time != time) {
+			// the first slot due at its own time is the earliest; failing
+			// that, everything pending is at least one turn of the wheel away
+			nextTime = Long.MAX_VALUE;
+
+			for (int i = 0; i < wheelSize; i++) {
+				PendingInterrupt head = wheel[(slot + i) & (wheelSize - 1)];
+				if (head == null)
+					continue;
+
+				if (head.time == time + i) {
+					nextTime = head.time;
+					break;
+				}
+
+				if (head.time < nextTime)
+					nextTime = head.time;
+			}
+		}
+
+		return first;
+	}
+
+	private PendingInterrupt allocate(long time, String type, Runnable handler) {
+		PendingInterrupt toOccur = freeList;
+
+		if (toOccur == null) {
+			toOccur = new PendingInterrupt();
+		}
+		else {
+			freeList = toOccur.next;
+			toOccur.next = null;
+		}
+
+		toOccur.time = time;
+		toOccur.type = type;
+		toOccur.handler = handler;
+		toOccur.id = numPendingInterruptsCreated++;
+
+		return toOccur;
+	}
+
+	private void free(PendingInterrupt toOccur) {
+		toOccur.type = null;
+		toOccur.handler = null;
+
+		toOccur.next = freeList;
+		freeList = toOccur;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,18 +292,13 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (nextTime > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (nextTime <= time) {
+			PendingInterrupt next = removeFirst();
 
 			Lib.assertTrue(next.time <= time);
 
@@ -179,7 +307,11 @@ public final class Interrupt {
 
 			Lib.debug(dbgInt, "  " + next.type);
 
-			next.handler.run();
+			// the handler may schedule interrupts, so recycle this one first
+			Runnable handler = next.handler;
+			free(next);
+
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,8 +322,25 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		ArrayList<PendingInterrupt> sorted = new ArrayList<PendingInterrupt>();
+		for (int i = 0; i < wheelSize; i++) {
+			PendingInterrupt toOccur = wheel[i];
+			while (toOccur != null) {
+				sorted.add(toOccur);
+				toOccur = toOccur.next;
+			}
+		}
+
+		Collections.sort(sorted, new Comparator<PendingInterrupt>() {
+			public int compare(PendingInterrupt a, PendingInterrupt b) {
+				if (a.time != b.time)
+					return (a.time < b.time) ? -1 : 1;
+				else
+					return (a.id < b.id) ? -1 : (a.id > b.id) ? 1 : 0;
+			}
+		});
+
+		for (PendingInterrupt toOccur : sorted) {
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
 		}
@@ -199,30 +348,11 @@ public final class Interrupt {
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
-
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
-
+	/**
+	 * A pending interrupt. Fired interrupts are kept on a free list and reused
+	 * by <tt>schedule()</tt>.
+	 */
+	private class PendingInterrupt {
 		long time;
 
 		String type;
@@ -230,6 +360,9 @@ public final class Interrupt {
 		Runnable handler;
 
 		private long id;
+
+		/** The next interrupt in the same slot, or on the free list. */
+		PendingInterrupt next = null;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +371,21 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/** <tt>true</tt> if <tt>idle()</tt> skips ahead to the next interrupt. */
+	private boolean idleSkip;
+
+	/** The pending interrupts, hashed by the time they are due. */
+	private PendingInterrupt[] wheel;
+
+	private int numPending = 0;
+
+	/** The time of the earliest pending interrupt. */
+	private long nextTime = Long.MAX_VALUE;
+
+	private PendingInterrupt freeList = null;
+
+	/** The number of slots in the timing wheel. Must be a power of two. */
+	private static final int wheelSize = 1024;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +397,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, int count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
+
+		public long nextPendingTime() {
+			return Interrupt.this.nextPendingTime();
+		}
 	}
 }
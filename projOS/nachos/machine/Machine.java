@@ -101,6 +101,23 @@ public final class Machine {
 		terminate();
 	}
 
+	/**
+	 * Add buffer cache activity to the statistics printed when Nachos halts.
+	 * The kernel has no other access to the statistics, and the counts can
+	 * only increase.
+	 * 
+	 * @param hits the number of blocks found in the cache.
+	 * @param misses the number of blocks not found in the cache.
+	 * @param writeBacks the number of dirty blocks written back.
+	 */
+	public static void countFileCache(int hits, int misses, int writeBacks) {
+		Lib.assertTrue(hits >= 0 && misses >= 0 && writeBacks >= 0);
+
+		stats.numCacheHits += hits;
+		stats.numCacheMisses += misses;
+		stats.numCacheWriteBacks += writeBacks;
+	}
+
 	/**
 	 * Return an array containing all command line arguments.
 	 * 
@@ -86,6 +86,18 @@ public class OpenFile {
 		return -1;
 	}
 
+	/**
+	 * Shorten this file to <i>length</i> bytes, discarding the rest. A file
+	 * that is not longer than that is left as it is.
+	 * 
+	 * @param length the number of bytes to keep.
+	 * @return <tt>true</tt> if the file is now no longer than <i>length</i>
+	 * bytes.
+	 */
+	public boolean truncate(int length) {
+		return false;
+	}
+
 	/**
 	 * Close this file and release any associated system resources.
 	 */
@@ -136,6 +148,132 @@ public class OpenFile {
 		return -1;
 	}
 
+	/**
+	 * Read this file starting at the specified position into several parts
+	 * of a buffer, filling each in turn, and return the total number of bytes
+	 * successfully read. If no bytes were read because of a fatal error,
+	 * returns -1.
+	 * 
+	 * <p>
+	 * This implementation makes one <tt>read()</tt> per part, stopping at the
+	 * first short read. A file that charges for each request can override it
+	 * to treat the whole batch as a single request.
+	 * 
+	 * @param pos the offset in the file at which to start reading.
+	 * @param buf the buffer to store the bytes in.
+	 * @param offsets the offset in the buffer of each part.
+	 * @param lengths the number of bytes to read into each part.
+	 * @param count the number of parts.
+	 * @return the actual number of bytes successfully read, or -1 on failure.
+	 */
+	public int read(int pos, byte[] buf, int[] offsets, int[] lengths,
+			int count) {
+		int total = 0;
+
+		for (int i = 0; i < count; i++) {
+			int amount = read(pos + total, buf, offsets[i], lengths[i]);
+			if (amount == -1)
+				return (total > 0) ? total : -1;
+
+			total += amount;
+			if (amount < lengths[i])
+				break;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Write this file starting at the specified position from several parts
+	 * of a buffer, in turn, and return the total number of bytes successfully
+	 * written. If no bytes were written because of a fatal error, returns -1.
+	 * 
+	 * <p>
+	 * This implementation makes one <tt>write()</tt> per part, stopping at
+	 * the first short write.
+	 * 
+	 * @param pos the offset in the file at which to start writing.
+	 * @param buf the buffer to get the bytes from.
+	 * @param offsets the offset in the buffer of each part.
+	 * @param lengths the number of bytes to write from each part.
+	 * @param count the number of parts.
+	 * @return the actual number of bytes successfully written, or -1 on
+	 * failure.
+	 */
+	public int write(int pos, byte[] buf, int[] offsets, int[] lengths,
+			int count) {
+		int total = 0;
+
+		for (int i = 0; i < count; i++) {
+			int amount = write(pos + total, buf, offsets[i], lengths[i]);
+			if (amount == -1)
+				return (total > 0) ? total : -1;
+
+			total += amount;
+			if (amount < lengths[i])
+				break;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Read this file starting at the current file pointer into several parts
+	 * of a buffer, filling each in turn. Advances the file pointer by the
+	 * total number of bytes read. If no bytes could be read because of a
+	 * fatal error, returns -1.
+	 * 
+	 * @param buf the buffer to store the bytes in.
+	 * @param offsets the offset in the buffer of each part.
+	 * @param lengths the number of bytes to read into each part.
+	 * @param count the number of parts.
+	 * @return the actual number of bytes successfully read, or -1 on failure.
+	 */
+	public int read(byte[] buf, int[] offsets, int[] lengths, int count) {
+		int total = 0;
+
+		for (int i = 0; i < count; i++) {
+			int amount = read(buf, offsets[i], lengths[i]);
+			if (amount == -1)
+				return (total > 0) ? total : -1;
+
+			total += amount;
+			if (amount < lengths[i])
+				break;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Write this file starting at the current file pointer from several parts
+	 * of a buffer, in turn. Advances the file pointer by the total number of
+	 * bytes written. If no bytes could be written because of a fatal error,
+	 * returns -1.
+	 * 
+	 * @param buf the buffer to get the bytes from.
+	 * @param offsets the offset in the buffer of each part.
+	 * @param lengths the number of bytes to write from each part.
+	 * @param count the number of parts.
+	 * @return the actual number of bytes successfully written, or -1 on
+	 * failure.
+	 */
+	public int write(byte[] buf, int[] offsets, int[] lengths, int count) {
+		int total = 0;
+
+		for (int i = 0; i < count; i++) {
+			int amount = write(buf, offsets[i], lengths[i]);
+			if (amount == -1)
+				return (total > 0) ? total : -1;
+
+			total += amount;
+			if (amount < lengths[i])
+				break;
+		}
+
+		return total;
+	}
+
 	private FileSystem fileSystem;
 
 	private String name;
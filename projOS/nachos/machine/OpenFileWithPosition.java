@@ -51,6 +51,24 @@ public abstract class OpenFileWithPosition extends OpenFile {
 		return amount;
 	}
 
+	public int read(byte[] buf, int[] offsets, int[] lengths, int count) {
+		int amount = read(position, buf, offsets, lengths, count);
+		if (amount == -1)
+			return -1;
+
+		position += amount;
+		return amount;
+	}
+
+	public int write(byte[] buf, int[] offsets, int[] lengths, int count) {
+		int amount = write(position, buf, offsets, lengths, count);
+		if (amount == -1)
+			return -1;
+
+		position += amount;
+		return amount;
+	}
+
 	/**
 	 * The current value of the file pointer.
 	 */
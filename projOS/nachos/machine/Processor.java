@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.ArrayList;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -46,6 +48,20 @@ public final class Processor {
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodedPages = new Decoded[numPhysPages][];
+
+		batchTicks = Config.getBoolean("Processor.batchTicks", false);
+
+		String engine = Config.getString("Processor.executionEngine",
+				"interpreter");
+		if (engine.equals("block")) {
+			blockEngine = true;
+			blockPages = new Block[numPhysPages][];
+		}
+		else {
+			Lib.assertTrue(engine.equals("interpreter"),
+					"unknown execution engine: " + engine);
+		}
 
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
@@ -91,8 +107,16 @@ public final class Processor {
 
 		Machine.autoGrader().runProcessor(privilege);
 
+		// the block engine doesn't trace individual instructions
+		if (blockEngine && !Lib.test(dbgProcessor)
+				&& !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble))
+			runBlocks();
+
 		Instruction inst = new Instruction();
 
+		if (batchTicks)
+			runBatched(inst);
+
 		while (true) {
 			try {
 				inst.run();
@@ -105,6 +129,54 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Interpret instructions, charging the simulated time for all the
+	 * instructions up to the next pending interrupt with a single tick.
+	 * Interrupts are still delivered after the same instruction as when
+	 * ticking after every instruction, and an exception first charges the
+	 * instructions that completed before it. Never returns.
+	 * 
+	 * @param inst the instruction state to use.
+	 */
+	private void runBatched(Instruction inst) {
+		while (true) {
+			int limit = instructionsUntilInterrupt();
+			int count = 0;
+
+			try {
+				while (count < limit) {
+					inst.run();
+					count++;
+				}
+			}
+			catch (MipsException e) {
+				if (count > 0)
+					privilege.interrupt.tick(false, count);
+
+				e.handle();
+				privilege.interrupt.tick(false);
+				continue;
+			}
+
+			privilege.interrupt.tick(false, count);
+		}
+	}
+
+	/**
+	 * Return the number of user instructions that can execute before the
+	 * next pending interrupt is due. The interrupt is due after the last of
+	 * them, so ticking for all of them at once delivers it on time.
+	 * 
+	 * @return the number of instructions, at least 1.
+	 */
+	private int instructionsUntilInterrupt() {
+		long ticksLeft = privilege.interrupt.nextPendingTime()
+				- privilege.stats.totalTicks;
+		long instsLeft = (ticksLeft + Stats.UserTick - 1) / Stats.UserTick;
+
+		return (int) Math.max(Math.min(instsLeft, Integer.MAX_VALUE), 1);
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -175,6 +247,9 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+
+		lastFetchTranslation.entry = null;
+		lastDataTranslation.entry = null;
 	}
 
 	/**
@@ -216,6 +291,9 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+
+		lastFetchTranslation.entry = null;
+		lastDataTranslation.entry = null;
 	}
 
 	/**
@@ -292,6 +370,25 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
+		return translate(vaddr, size, writing, lastDataTranslation);
+	}
+
+	/**
+	 * Translate a virtual address into a physical address, first trying the
+	 * entry that translated the last access of the same kind. That entry is
+	 * used again only if it still maps the same virtual page, is still valid,
+	 * and (without a TLB) is still the one in the page table, since the kernel
+	 * is free to change page table entries in place.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @param size the size of the memory reference (must be 1, 2, or 4).
+	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @param last the last translation for this kind of access.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translate(int vaddr, int size, boolean writing,
+			LastTranslation last) throws MipsException {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -306,6 +403,51 @@ public final class Processor {
 		int vpn = pageFromAddress(vaddr);
 		int offset = offsetFromAddress(vaddr);
 
+		TranslationEntry entry = last.entry;
+
+		if (entry == null || last.vpn != vpn || !entry.valid
+				|| (!usingTLB && translations[vpn] != entry)) {
+			entry = lookup(vaddr, vpn);
+
+			last.vpn = vpn;
+			last.entry = entry;
+		}
+
+		// check if trying to write a read-only page
+		if (entry.readOnly && writing) {
+			Lib.debug(dbgProcessor, "\t\tread-only exception");
+			throw new MipsException(exceptionReadOnly, vaddr);
+		}
+
+		// check if physical page number is out of range
+		int ppn = entry.ppn;
+		if (ppn < 0 || ppn >= numPhysPages) {
+			Lib.debug(dbgProcessor, "\t\tbad ppn");
+			throw new MipsException(exceptionBusError, vaddr);
+		}
+
+		// set used and dirty bits as appropriate
+		entry.used = true;
+		if (writing)
+			entry.dirty = true;
+
+		int paddr = (ppn * pageSize) + offset;
+
+		if (Lib.test(dbgProcessor))
+			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+		return paddr;
+	}
+
+	/**
+	 * Find the translation entry for virtual page <i>vpn</i>, in either the
+	 * page table or the TLB.
+	 * 
+	 * @param vaddr the virtual address being translated.
+	 * @param vpn the virtual page number of <i>vaddr</i>.
+	 * @return the valid entry mapping <i>vpn</i>.
+	 * @exception MipsException if there is no such entry.
+	 */
+	private TranslationEntry lookup(int vaddr, int vpn) throws MipsException {
 		TranslationEntry entry = null;
 
 		// if not using a TLB, then the vpn is an index into the table
@@ -334,29 +476,7 @@ public final class Processor {
 			}
 		}
 
-		// check if trying to write a read-only page
-		if (entry.readOnly && writing) {
-			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
-		}
-
-		// check if physical page number is out of range
-		int ppn = entry.ppn;
-		if (ppn < 0 || ppn >= numPhysPages) {
-			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
-		}
-
-		// set used and dirty bits as appropriate
-		entry.used = true;
-		if (writing)
-			entry.dirty = true;
-
-		int paddr = (ppn * pageSize) + offset;
-
-		if (Lib.test(dbgProcessor))
-			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
-		return paddr;
+		return entry;
 	}
 
 	/**
@@ -558,6 +678,13 @@ public final class Processor {
 	 */
 	private TranslationEntry[] translations;
 
+	/**
+	 * The last translation used by an instruction fetch, or by a load or
+	 * store. Cleared by <tt>setPageTable()</tt> and <tt>writeTLBEntry()</tt>.
+	 */
+	private LastTranslation lastFetchTranslation = new LastTranslation(),
+			lastDataTranslation = new LastTranslation();
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -573,12 +700,28 @@ public final class Processor {
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
+	/**
+	 * <tt>true</tt> if the interpreter should tick once per run of
+	 * instructions up to the next interrupt, rather than once per
+	 * instruction.
+	 */
+	private boolean batchTicks;
+
+	/** <tt>true</tt> if executing whole basic blocks at a time. */
+	private boolean blockEngine = false;
+
 	private static final char dbgProcessor = 'p';
 
 	private static final char dbgDisassemble = 'm';
 
 	private static final char dbgFullDisassemble = 'M';
 
+	private static class LastTranslation {
+		int vpn;
+
+		TranslationEntry entry = null;
+	}
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
@@ -643,78 +786,55 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
+
+			paddr = translate(registers[regPC], 4, false, lastFetchTranslation);
+			value = Lib.bytesToInt(mainMemory, paddr);
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			Decoded decoded = predecode(paddr, value);
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.info.operation;
+			name = decoded.info.name;
+			format = decoded.info.format;
+			flags = decoded.info.flags;
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + decoded.branchOffset;
 			else if (format == Mips.JFMT)
-				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+				jtarget = (registers[regNextPC] & 0xF0000000)
+						| decoded.jumpTarget;
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -1070,7 +1190,7 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
@@ -1087,6 +1207,617 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * Execute instructions a basic block at a time. Never returns.
+	 *
+	 * <p>
+	 * Each block is a straight run of instructions within one physical page,
+	 * ending after a branch and its delay slot, or at a syscall or illegal
+	 * instruction. Its instructions are compiled once into
+	 * <tt>BlockOp</tt>s that perform exactly the same register, memory and
+	 * delayed load updates as <tt>Instruction</tt>, and the simulated time
+	 * for the whole run is charged with a single tick.
+	 *
+	 * <p>
+	 * A block never runs past the time the next interrupt is due, and an
+	 * exception charges the instructions that completed before it, so
+	 * interrupts and exceptions are delivered after the same instruction
+	 * and at the same tick as with the interpreter.
+	 */
+	private void runBlocks() {
+		while (true) {
+			int pc = registers[regPC];
+			Block block;
+
+			try {
+				block = findBlock(translate(pc, 4, false,
+						lastFetchTranslation));
+			}
+			catch (MipsException e) {
+				e.handle();
+				privilege.interrupt.tick(false);
+				continue;
+			}
+
+			int limit = Math.min(block.ops.length, instructionsUntilInterrupt());
+
+			int count = 0;
+
+			try {
+				while (count < limit) {
+					BlockOp op = block.ops[count];
+
+					// the rest of the block was overwritten; recompile it
+					if (Lib.bytesToInt(mainMemory, op.paddr) != op.value) {
+						block.discard();
+						break;
+					}
+
+					op.run();
+					count++;
+
+					if (registers[regPC] != pc + count * 4)
+						break;
+				}
+			}
+			catch (MipsException e) {
+				if (count > 0)
+					privilege.interrupt.tick(false, count);
+
+				e.handle();
+				privilege.interrupt.tick(false);
+				continue;
+			}
+
+			privilege.interrupt.tick(false, count);
+		}
+	}
+
+	/**
+	 * Return the block starting at physical address <i>paddr</i>, compiling
+	 * it if it is not cached or its first instruction has changed.
+	 *
+	 * @param paddr the physical address of the first instruction.
+	 * @return the block.
+	 */
+	private Block findBlock(int paddr) {
+		int ppn = paddr / pageSize;
+		int index = (paddr % pageSize) >> 2;
+
+		Block[] page = blockPages[ppn];
+		if (page == null) {
+			page = new Block[pageSize / 4];
+			blockPages[ppn] = page;
+		}
+
+		Block block = page[index];
+		if (block == null
+				|| Lib.bytesToInt(mainMemory, paddr) != block.ops[0].value) {
+			block = new Block(paddr);
+			page[index] = block;
+		}
+
+		return block;
+	}
+
+	private class Block {
+		Block(int paddr) {
+			this.paddr = paddr;
+
+			ArrayList<BlockOp> list = new ArrayList<BlockOp>();
+			int end = (paddr / pageSize + 1) * pageSize;
+			boolean delaySlot = false;
+
+			for (int addr = paddr; addr < end
+					&& list.size() < maxBlockLength; addr += 4) {
+				Decoded decoded = predecode(addr, Lib.bytesToInt(mainMemory,
+						addr));
+				list.add(compile(addr, decoded));
+
+				if (delaySlot)
+					break;
+
+				int operation = decoded.info.operation;
+				if (Lib.test(Mips.BRANCH, decoded.info.flags))
+					delaySlot = true;
+				else if (operation == Mips.SYSCALL
+						|| operation == Mips.UNIMPL
+						|| operation == Mips.INVALID)
+					break;
+			}
+
+			ops = list.toArray(new BlockOp[list.size()]);
+		}
+
+		void discard() {
+			blockPages[paddr / pageSize][(paddr % pageSize) >> 2] = null;
+		}
+
+		int paddr;
+
+		BlockOp[] ops;
+	}
+
+	/**
+	 * Compile a single predecoded instruction.
+	 *
+	 * @param paddr the physical address of the instruction.
+	 * @param decoded the predecoded instruction.
+	 * @return an operation that executes the instruction.
+	 */
+	private BlockOp compile(int paddr, Decoded decoded) {
+		switch (decoded.info.operation) {
+		case Mips.ADD:
+			return new AddOp(paddr, decoded);
+		case Mips.SUB:
+			return new SubOp(paddr, decoded);
+		case Mips.AND:
+		case Mips.OR:
+		case Mips.NOR:
+		case Mips.XOR:
+			return new LogicOp(paddr, decoded);
+		case Mips.SLL:
+		case Mips.SRA:
+		case Mips.SRL:
+			return new ShiftOp(paddr, decoded);
+		case Mips.SLT:
+			return new SltOp(paddr, decoded);
+		case Mips.LUI:
+			return new LuiOp(paddr, decoded);
+		case Mips.MFLO:
+		case Mips.MFHI:
+			return new MoveFromOp(paddr, decoded);
+		case Mips.BEQ:
+		case Mips.BNE:
+		case Mips.BLEZ:
+		case Mips.BGTZ:
+		case Mips.BLTZ:
+		case Mips.BGEZ:
+			return new BranchOp(paddr, decoded);
+		case Mips.JUMP:
+			return new JumpOp(paddr, decoded);
+		case Mips.LOAD:
+			return new LoadOp(paddr, decoded);
+		case Mips.STORE:
+			return new StoreOp(paddr, decoded);
+		default:
+			return new GenericOp(paddr, decoded);
+		}
+	}
+
+	/**
+	 * A compiled instruction. The fields it needs are copied out of the
+	 * <tt>Decoded</tt> entry, since that entry is reused if the word it was
+	 * decoded from is overwritten.
+	 */
+	private abstract class BlockOp {
+		BlockOp(int paddr, Decoded decoded) {
+			this.paddr = paddr;
+
+			value = decoded.value;
+			operation = decoded.info.operation;
+			flags = decoded.info.flags;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			imm = decoded.imm;
+			size = decoded.size;
+			dstReg = decoded.dstReg;
+		}
+
+		abstract void run() throws MipsException;
+
+		boolean test(int flag) {
+			return Lib.test(flag, flags);
+		}
+
+		/**
+		 * Complete the delayed load in progress, write <i>result</i> to the
+		 * destination register, and move on to the next instruction.
+		 */
+		void retire(int result) {
+			finishLoad();
+
+			if (dstReg != 0)
+				registers[dstReg] = result;
+
+			advancePC(registers[regNextPC] + 4);
+		}
+
+		int paddr, value, operation, flags, rs, rt, imm, size, dstReg;
+	}
+
+	private class AddOp extends BlockOp {
+		AddOp(int paddr, Decoded decoded) {
+			super(paddr, decoded);
+			immediate = test(Mips.SRC2IMM);
+			overflow = test(Mips.OVERFLOW);
+		}
+
+		void run() throws MipsException {
+			long result = (long) registers[rs]
+					+ (immediate ? imm : registers[rt]);
+
+			if (overflow && result != (int) result)
+				throw new MipsException(exceptionOverflow);
+
+			retire((int) result);
+		}
+
+		private boolean immediate, overflow;
+	}
+
+	private class SubOp extends BlockOp {
+		SubOp(int paddr, Decoded decoded) {
+			super(paddr, decoded);
+			overflow = test(Mips.OVERFLOW);
+		}
+
+		void run() throws MipsException {
+			long result = (long) registers[rs] - registers[rt];
+
+			if (overflow && result != (int) result)
+				throw new MipsException(exceptionOverflow);
+
+			retire((int) result);
+		}
+
+		private boolean overflow;
+	}
+
+	private class LogicOp extends BlockOp {
+		LogicOp(int paddr, Decoded decoded) {
+			super(paddr, decoded);
+			immediate = test(Mips.SRC2IMM);
+		}
+
+		void run() {
+			int src1 = registers[rs];
+			int src2 = immediate ? imm : registers[rt];
+
+			switch (operation) {
+			case Mips.AND:
+				retire(src1 & src2);
+				break;
+			case Mips.OR:
+				retire(src1 | src2);
+				break;
+			case Mips.NOR:
+				retire(~(src1 | src2));
+				break;
+			default:
+				retire(src1 ^ src2);
+				break;
+			}
+		}
+
+		private boolean immediate;
+	}
+
+	private class ShiftOp extends BlockOp {
+		ShiftOp(int paddr, Decoded decoded) {
+			super(paddr, decoded);
+			sh = decoded.sh;
+			shiftImmediate = test(Mips.SRC1SH);
+		}
+
+		void run() {
+			int amount = (shiftImmediate ? sh : registers[rs]) & 0x1F;
+			int src2 = registers[rt];
+
+			switch (operation) {
+			case Mips.SLL:
+				retire(src2 << amount);
+				break;
+			case Mips.SRA:
+				retire(src2 >> amount);
+				break;
+			default:
+				// the interpreter shifts the sign-extended 64-bit value
+				retire((int) (((long) src2) >>> amount));
+				break;
+			}
+		}
+
+		private int sh;
+
+		private boolean shiftImmediate;
+	}
+
+	private class SltOp extends BlockOp {
+		SltOp(int paddr, Decoded decoded) {
+			super(paddr, decoded);
+			immediate = test(Mips.SRC2IMM);
+			unsigned = test(Mips.UNSIGNED);
+		}
+
+		void run() {
+			int src1 = registers[rs];
+			int src2 = immediate ? imm : registers[rt];
+
+			if (unsigned) {
+				src1 ^= 0x80000000;
+				src2 ^= 0x80000000;
+			}
+
+			retire((src1 < src2) ? 1 : 0);
+		}
+
+		private boolean immediate, unsigned;
+	}
+
+	private class LuiOp extends BlockOp {
+		LuiOp(int paddr, Decoded decoded) {
+			super(paddr, decoded);
+		}
+
+		void run() {
+			retire(imm << 16);
+		}
+	}
+
+	private class MoveFromOp extends BlockOp {
+		MoveFromOp(int paddr, Decoded decoded) {
+			super(paddr, decoded);
+			source = (operation == Mips.MFLO) ? regLo : regHi;
+		}
+
+		void run() {
+			retire(registers[source]);
+		}
+
+		private int source;
+	}
+
+	private class BranchOp extends BlockOp {
+		BranchOp(int paddr, Decoded decoded) {
+			super(paddr, decoded);
+			branchOffset = decoded.branchOffset;
+			link = test(Mips.LINK);
+		}
+
+		void run() {
+			int src1 = registers[rs];
+			boolean branch;
+
+			switch (operation) {
+			case Mips.BEQ:
+				branch = (src1 == registers[rt]);
+				break;
+			case Mips.BNE:
+				branch = (src1 != registers[rt]);
+				break;
+			case Mips.BGEZ:
+				branch = (src1 >= 0);
+				break;
+			case Mips.BGTZ:
+				branch = (src1 > 0);
+				break;
+			case Mips.BLEZ:
+				branch = (src1 <= 0);
+				break;
+			default:
+				branch = (src1 < 0);
+				break;
+			}
+
+			int nextPC = registers[regNextPC] + 4;
+			int jtarget = registers[regNextPC] + branchOffset;
+
+			finishLoad();
+
+			if (link)
+				registers[dstReg] = nextPC;
+
+			advancePC(branch ? jtarget : nextPC);
+		}
+
+		private int branchOffset;
+
+		private boolean link;
+	}
+
+	private class JumpOp extends BlockOp {
+		JumpOp(int paddr, Decoded decoded) {
+			super(paddr, decoded);
+			jumpTarget = decoded.jumpTarget;
+			register = (decoded.info.format == Mips.RFMT);
+			link = test(Mips.LINK);
+		}
+
+		void run() {
+			int nextPC = registers[regNextPC] + 4;
+			int jtarget;
+
+			if (register)
+				jtarget = registers[rs];
+			else
+				jtarget = (registers[regNextPC] & 0xF0000000) | jumpTarget;
+
+			finishLoad();
+
+			if (link && dstReg != 0)
+				registers[dstReg] = nextPC;
+
+			advancePC(jtarget);
+		}
+
+		private int jumpTarget;
+
+		private boolean register, link;
+	}
+
+	private class LoadOp extends BlockOp {
+		LoadOp(int paddr, Decoded decoded) {
+			super(paddr, decoded);
+			unsigned = test(Mips.UNSIGNED);
+		}
+
+		void run() throws MipsException {
+			int value = Lib.bytesToInt(mainMemory, translate(registers[rs]
+					+ imm, size, false), size);
+
+			if (!unsigned)
+				value = Lib.extend(value, 0, size * 8);
+
+			delayedLoad(dstReg, value, 0xFFFFFFFF);
+			advancePC(registers[regNextPC] + 4);
+		}
+
+		private boolean unsigned;
+	}
+
+	private class StoreOp extends BlockOp {
+		StoreOp(int paddr, Decoded decoded) {
+			super(paddr, decoded);
+		}
+
+		void run() throws MipsException {
+			int value = registers[rt];
+
+			Lib.bytesFromInt(mainMemory, translate(registers[rs] + imm, size,
+					true), size, value);
+
+			finishLoad();
+			advancePC(registers[regNextPC] + 4);
+		}
+	}
+
+	/**
+	 * Executes an uncommon instruction through <tt>Instruction</tt>.
+	 */
+	private class GenericOp extends BlockOp {
+		GenericOp(int paddr, Decoded decoded) {
+			super(paddr, decoded);
+		}
+
+		void run() throws MipsException {
+			genericInstruction.paddr = paddr;
+			genericInstruction.value = value;
+			genericInstruction.decode();
+			genericInstruction.execute();
+			genericInstruction.writeBack();
+		}
+	}
+
+	/** Compiled blocks, indexed by physical page number and then by word. */
+	private Block[][] blockPages;
+
+	/** Used by <tt>GenericOp</tt> to execute uncommon instructions. */
+	private Instruction genericInstruction = new Instruction();
+
+	/** The most instructions in a single block. */
+	private static final int maxBlockLength = 64;
+
+	/**
+	 * Return the predecoded form of the instruction word <i>value</i>, which
+	 * was fetched from physical address <i>paddr</i>. Decoded instructions are
+	 * cached per physical page. Each entry is tagged with the word it was
+	 * decoded from, so an entry whose word has since been overwritten (by a
+	 * store, by the kernel through <tt>getMemory()</tt>, or because the page
+	 * now holds a different virtual page) is simply decoded again.
+	 * 
+	 * @param paddr the physical address the instruction was fetched from.
+	 * @param value the instruction word.
+	 * @return the predecoded instruction.
+	 */
+	private Decoded predecode(int paddr, int value) {
+		int ppn = paddr / pageSize;
+		int index = (paddr % pageSize) >> 2;
+
+		Decoded[] page = decodedPages[ppn];
+		if (page == null) {
+			page = new Decoded[pageSize / 4];
+			decodedPages[ppn] = page;
+		}
+
+		Decoded decoded = page[index];
+		if (decoded == null) {
+			decoded = new Decoded();
+			page[index] = decoded;
+		}
+		else if (decoded.value == value) {
+			return decoded;
+		}
+
+		decoded.decode(value);
+		return decoded;
+	}
+
+	/**
+	 * The part of an instruction's decoding that depends only on the
+	 * instruction word, and not on the contents of any register.
+	 */
+	private static class Decoded {
+		void decode(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			imm = Lib.extend(value, 0, 16);
+
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, info.flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, info.flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, info.flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, info.flags))
+				dstReg = regRA;
+			else if (info.format == Mips.IFMT)
+				dstReg = rt;
+			else if (info.format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branch and jump targets use the sign-extended immediate
+			branchOffset = imm << 2;
+			jumpTarget = target << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, info.flags))
+				imm &= 0xFFFF;
+		}
+
+		/** The instruction word this entry was decoded from. */
+		int value;
+
+		int op, rs, rt, rd, sh, func, target, imm;
+
+		int size, dstReg, branchOffset, jumpTarget;
+
+		Mips info;
+	}
+
+	/**
+	 * Predecoded instructions, indexed by physical page number and then by
+	 * word within the page. Pages are allocated the first time an instruction
+	 * is fetched from them.
+	 */
+	private Decoded[][] decodedPages;
+
 	private static class Mips {
 		Mips() {
 		}
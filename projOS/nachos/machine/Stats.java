@@ -19,7 +19,8 @@ public final class Stats {
 	 */
 	public void print() {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
-				+ kernelTicks + ", user " + userTicks);
+				+ kernelTicks + ", user " + userTicks
+				+ (idleTicks != 0 ? ", idle " + idleTicks : ""));
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
 		System.out.println("Console I/O: reads " + numConsoleReads
@@ -29,6 +30,10 @@ public final class Stats {
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites);
+		if (numCacheHits + numCacheMisses + numCacheWriteBacks != 0)
+			System.out.println("File cache: hits " + numCacheHits
+					+ ", misses " + numCacheMisses + ", write-backs "
+					+ numCacheWriteBacks);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
 	}
@@ -48,6 +53,12 @@ public final class Stats {
 	 */
 	public long userTicks = 0;
 
+	/**
+	 * The total amount of simulated time skipped while no thread was ready to
+	 * run (see <tt>Interrupt.idle()</tt>).
+	 */
+	public long idleTicks = 0;
+
 	/** The total number of sectors Nachos has read from the simulated disk. */
 	public int numDiskReads = 0;
 
@@ -75,6 +86,15 @@ public final class Stats {
         /** The total number of pages written to swap. */
         public int numSwapWrites = 0;
 
+	/** The total number of file blocks found in the buffer cache. */
+	public int numCacheHits = 0;
+
+	/** The total number of file blocks not found in the buffer cache. */
+	public int numCacheMisses = 0;
+
+	/** The total number of dirty blocks written back from the buffer cache. */
+	public int numCacheWriteBacks = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
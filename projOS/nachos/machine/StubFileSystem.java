@@ -23,6 +23,8 @@ public class StubFileSystem implements FileSystem {
 	public StubFileSystem(Privilege privilege, File directory) {
 		this.privilege = privilege;
 		this.directory = directory;
+
+		maxOpenFiles = Config.getInteger("FileSystem.maxOpenFiles", 32);
 	}
 
 	public OpenFile open(String name, boolean truncate) {
@@ -43,6 +45,14 @@ public class StubFileSystem implements FileSystem {
 		return openCount;
 	}
 
+	/**
+	 * Return the most files that can be open at once, across all processes.
+	 * This is <tt>FileSystem.maxOpenFiles</tt>, or 32 by default.
+	 */
+	public int getMaxOpenFiles() {
+		return maxOpenFiles;
+	}
+
 	public boolean remove(String name) {
 		if (!checkName(name))
 			return false;
@@ -143,6 +153,56 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
+		public int read(int pos, byte[] buf, int[] offsets, int[] lengths,
+				int count) {
+			if (!open)
+				return -1;
+
+			int total = 0;
+			try {
+				// the whole batch is a single request
+				delay();
+
+				file.seek(pos);
+				for (int i = 0; i < count; i++) {
+					int amount = Math.max(0, file.read(buf, offsets[i],
+							lengths[i]));
+
+					total += amount;
+					if (amount < lengths[i])
+						break;
+				}
+
+				return total;
+			}
+			catch (IOException e) {
+				return (total > 0) ? total : -1;
+			}
+		}
+
+		public int write(int pos, byte[] buf, int[] offsets, int[] lengths,
+				int count) {
+			if (!open)
+				return -1;
+
+			int total = 0;
+			try {
+				// the whole batch is a single request
+				delay();
+
+				file.seek(pos);
+				for (int i = 0; i < count; i++) {
+					file.write(buf, offsets[i], lengths[i]);
+					total += lengths[i];
+				}
+
+				return total;
+			}
+			catch (IOException e) {
+				return (total > 0) ? total : -1;
+			}
+		}
+
 		public int length() {
 			try {
 				return (int) file.length();
@@ -152,6 +212,23 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
+		public boolean truncate(int length) {
+			if (!open || length < 0)
+				return false;
+
+			// like length(), this only touches the file's size, not its data,
+			// so it is not delayed
+			try {
+				if (length < file.length())
+					file.setLength(length);
+
+				return true;
+			}
+			catch (IOException e) {
+				return false;
+			}
+		}
+
 		public void close() {
 			if (open) {
 				open = false;
@@ -172,7 +249,7 @@ public class StubFileSystem implements FileSystem {
 
 	public int openCount = 0;
 
-	private static final int maxOpenFiles = 32;
+	private int maxOpenFiles;
 
 	private Privilege privilege;
 
@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +22,16 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * Control is handed from one TCB's Java thread to the next either with a
+ * monitor per TCB (<tt>wait()</tt> and <tt>notify()</tt>), or, if
+ * <tt>TCB.handoff</tt> is set to <tt>park</tt>, by parking and unparking the
+ * Java threads directly, which avoids taking a lock on every context switch.
+ * 
+ * <p>
+ * If <tt>TCB.poolCarriers</tt> is set, the Java thread of a destroyed TCB is
+ * kept in a pool and reused by the next TCB to start, instead of exiting.
  */
 public final class TCB {
 	/**
@@ -39,6 +50,20 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		maxThreads = Config.getInteger("TCB.maxThreads", 2000);
+		Lib.assertTrue(maxThreads > 0, "TCB.maxThreads must be positive");
+
+		poolCarriers = Config.getBoolean("TCB.poolCarriers", false);
+
+		String handoff = Config.getString("TCB.handoff", "monitor");
+		if (handoff.equals("park")) {
+			parkHandoff = true;
+		}
+		else {
+			Lib.assertTrue(handoff.equals("monitor"),
+					"unknown TCB handoff: " + handoff);
+		}
 	}
 
 	/**
@@ -89,7 +114,40 @@ public final class TCB {
 
 		this.target = target;
 
-		if (!isFirstTCB) {
+		if (!isFirstTCB && poolCarriers) {
+			/*
+			 * Run this TCB on an idle carrier thread, making a new one if
+			 * there are none. As below, we wait for the carrier to wake us up
+			 * from threadroot() before context switching to the new TCB.
+			 */
+			Carrier carrier = null;
+
+			synchronized (idleCarriers) {
+				if (!idleCarriers.isEmpty())
+					carrier = idleCarriers.remove(idleCarriers.size() - 1);
+			}
+
+			if (carrier == null) {
+				final Carrier newCarrier = new Carrier();
+
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						newCarrier.thread = new Thread(newCarrier);
+					}
+				});
+
+				carrier = newCarrier;
+				carrier.thread.start();
+			}
+
+			javaThread = carrier.thread;
+
+			currentTCB.running = false;
+
+			carrier.assign(this);
+			currentTCB.waitForInterrupt();
+		}
+		else if (!isFirstTCB) {
 			/*
 			 * If this is not the first TCB, we have to make a new Java thread
 			 * to run it. Creating Java threads is a privileged operation.
@@ -298,12 +356,22 @@ public final class TCB {
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
+	private void waitForInterrupt() {
+		if (parkHandoff) {
+			// park() may return spuriously, so always recheck the flag
+			while (!running)
+				LockSupport.park(this);
+
+			return;
+		}
+
+		synchronized (this) {
+			while (!running) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+				}
 			}
 		}
 	}
@@ -314,9 +382,17 @@ public final class TCB {
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
-		running = true;
-		notify();
+	private void interrupt() {
+		if (parkHandoff) {
+			running = true;
+			LockSupport.unpark(javaThread);
+			return;
+		}
+
+		synchronized (this) {
+			running = true;
+			notify();
+		}
 	}
 
 	private void associateThread(KThread thread) {
@@ -342,9 +418,11 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence. Set by <tt>TCB.maxThreads</tt>, 2000 by default. Each one
+	 * holds a Java thread, so the host's limit on threads per user also
+	 * applies.
 	 */
-	public static final int maxThreads = 250;
+	private static int maxThreads;
 
 	/**
 	 * A reference to the currently running TCB. It is initialized to
@@ -379,6 +457,18 @@ public final class TCB {
 
 	private static KThread toBeDestroyed = null;
 
+	/** <tt>true</tt> if the Java threads of destroyed TCBs are reused. */
+	private static boolean poolCarriers = false;
+
+	/** Carrier threads waiting for a TCB to run. */
+	private static Vector<Carrier> idleCarriers = new Vector<Carrier>();
+
+	/**
+	 * <tt>true</tt> if TCBs hand off control with <tt>LockSupport</tt> rather
+	 * than with a monitor per TCB.
+	 */
+	private static boolean parkHandoff = false;
+
 	/**
 	 * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
 	 * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -401,9 +491,10 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. It is volatile because with <tt>park</tt> handoff it is set and
+	 * read without holding this TCB's monitor.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -420,6 +511,47 @@ public final class TCB {
 
 	private Runnable tcbTarget;
 
+	/**
+	 * A Java thread that runs one TCB after another. When the TCB it is
+	 * running is destroyed, <tt>threadroot()</tt> returns instead of the
+	 * thread exiting, and the carrier goes back on the idle list.
+	 */
+	private static class Carrier implements Runnable {
+		public void run() {
+			while (true) {
+				TCB tcb;
+
+				synchronized (this) {
+					while (next == null) {
+						try {
+							wait();
+						}
+						catch (InterruptedException e) {
+						}
+					}
+
+					tcb = next;
+					next = null;
+				}
+
+				tcb.threadroot();
+
+				idleCarriers.add(this);
+			}
+		}
+
+		synchronized void assign(TCB tcb) {
+			Lib.assertTrue(next == null);
+
+			next = tcb;
+			notify();
+		}
+
+		Thread thread;
+
+		private TCB next = null;
+	}
+
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
 		public void associateThread(KThread thread) {
 			Lib.assertTrue(currentTCB != null);
@@ -157,6 +157,27 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by <tt>count</tt> ticks of the same kind
+		 * at once. Pending interrupts are only checked at the end, so the
+		 * caller must not step over the time returned by
+		 * <tt>nextPendingTime()</tt>.
+		 * 
+		 * @param inKernelMode <tt>true</tt> if the current thread is running
+		 * kernel code, <tt>false</tt> if the current thread is running MIPS
+		 * user code.
+		 * @param count the number of ticks to advance by.
+		 */
+		public void tick(boolean inKernelMode, int count);
+
+		/**
+		 * Return the time at which the earliest pending interrupt is due.
+		 * 
+		 * @return the time of the next pending interrupt, or
+		 * <tt>Long.MAX_VALUE</tt> if none is pending.
+		 */
+		public long nextPendingTime();
 	}
 
 	/**
@@ -48,6 +48,9 @@ public class Alarm {
 			threadTop.thread.ready();
 			Machine.interrupt().restore(intStatus);
 		}
+
+		if (ThreadedKernel.scheduler.timerInterrupt())
+			KThread.yield();
 	}
 
 	/**
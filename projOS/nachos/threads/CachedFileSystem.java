@@ -0,0 +1,1005 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A file system that keeps recently used blocks of files in memory, in front
+ * of another file system. The other file system is the one named by
+ * <tt>CachedFileSystem.fileSystem</tt>, or the stub file system by default.
+ * To use it, set <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.threads.CachedFileSystem</tt>.
+ *
+ * <p>
+ * The cache holds <tt>CachedFileSystem.numBlocks</tt> blocks (64 by
+ * default) of <tt>CachedFileSystem.blockSize</tt> bytes (1024 by default),
+ * all kept in one array so that a run of blocks can be read or written with
+ * a single vectored request. Blocks are replaced using the clock algorithm.
+ * Writes only reach the underlying file system when a dirty block is
+ * replaced, when the last handle on its file is closed, or when
+ * <tt>flush()</tt> is called, which the kernel does when it terminates.
+ * The blocks of a removed file are discarded instead of written back.
+ *
+ * <p>
+ * Each file is opened only once in the underlying file system, however many
+ * handles there are on it, and its blocks stay cached after it is closed, so
+ * a program that is run again is loaded without any requests at all.
+ *
+ * <p>
+ * Each handle watches for sequential access through its position, as
+ * with the read() and write() system calls. When a handle reads
+ * sequentially, the next <tt>CachedFileSystem.readAhead</tt> blocks (4 by
+ * default) are read in ahead of it. When a handle writes sequentially,
+ * every <tt>CachedFileSystem.writeBehind</tt> blocks (4 by default) it
+ * completes are written back together. Both are done by a background thread,
+ * so the underlying file system's delay overlaps with whatever the caller
+ * does next. Setting either to 0 turns it off.
+ *
+ * <p>
+ * A block is <i>busy</i> while a thread is copying to or from it, or reading
+ * or writing it in the underlying file system; only then is the cache lock
+ * released. A thread waits for a busy block only if it holds no busy blocks
+ * itself, so threads can't deadlock on each other's blocks.
+ */
+public class CachedFileSystem implements FileSystem {
+	/**
+	 * Allocate a new cached file system.
+	 */
+	public CachedFileSystem() {
+		String fileSystemName = Config.getString("CachedFileSystem.fileSystem",
+				null);
+		if (fileSystemName != null)
+			fileSystem = (FileSystem) Lib.constructObject(fileSystemName);
+		else
+			fileSystem = Machine.stubFileSystem();
+
+		Lib.assertTrue(fileSystem != null);
+
+		blockSize = Config.getInteger("CachedFileSystem.blockSize", 1024);
+		int numBlocks = Config.getInteger("CachedFileSystem.numBlocks", 64);
+		Lib.assertTrue(blockSize > 0 && numBlocks > 0);
+
+		memory = new byte[numBlocks * blockSize];
+		blocks = new Block[numBlocks];
+		for (int i = 0; i < numBlocks; i++)
+			blocks[i] = new Block(i * blockSize);
+
+		maxBatch = Math.max(1, Math.min(maxTransferBlocks, numBlocks / 4));
+
+		readAhead = Config.getInteger("CachedFileSystem.readAhead", 4);
+		writeBehind = Config.getInteger("CachedFileSystem.writeBehind", 4);
+		Lib.assertTrue(readAhead >= 0 && writeBehind >= 0);
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		lock.acquire();
+
+		CachedFile file = files.get(name);
+		if (file == null) {
+			file = new CachedFile(name);
+			files.put(name, file);
+		}
+
+		file.refs++;
+
+		while (file.opening)
+			blockFree.sleep();
+
+		// only open the underlying file if we must
+		if (file.file == null || truncate) {
+			file.opening = true;
+			if (truncate)
+				invalidate(file);
+
+			lock.release();
+			OpenFile underlying = fileSystem.open(name, truncate);
+			lock.acquire();
+
+			file.opening = false;
+			blockFree.wakeAll();
+
+			if (underlying == null) {
+				file.refs--;
+				forget(file);
+				lock.release();
+				return null;
+			}
+
+			if (file.file == null) {
+				file.file = underlying;
+
+				// the file may have changed since its blocks were cached
+				int length = underlying.length();
+				if (length != file.length)
+					invalidate(file);
+
+				file.length = length;
+			}
+			else {
+				// the existing handle refers to the same, now empty, file
+				underlying.close();
+				file.length = 0;
+			}
+		}
+
+		openCount++;
+		lock.release();
+
+		return new CachedOpenFile(file);
+	}
+
+	public boolean remove(String name) {
+		lock.acquire();
+
+		// any open handles can still use the file, but nothing written to it
+		// needs to reach the underlying file system
+		CachedFile file = files.remove(name);
+		if (file != null) {
+			file.removed = true;
+			if (file.refs == 0)
+				invalidate(file);
+		}
+
+		lock.release();
+
+		return fileSystem.remove(name);
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Return the underlying file system's limit. Every file open through the
+	 * cache holds one underlying file open, however many times it is opened.
+	 */
+	public int getMaxOpenFiles() {
+		return fileSystem.getMaxOpenFiles();
+	}
+
+	/**
+	 * Write every dirty block back to the underlying file system.
+	 */
+	public void flush() {
+		lock.acquire();
+
+		for (int i = 0; i < blocks.length; i++) {
+			if (blocks[i].file != null && blocks[i].dirty)
+				flush(blocks[i].file);
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Write back every dirty block of <i>file</i>, each run of consecutive
+	 * blocks as a single request, and wait for any busy block of the file.
+	 */
+	private void flush(CachedFile file) {
+		while (true) {
+			int count = 0;
+			boolean waiting = false;
+
+			Block[] run = new Block[file.blocks.size()];
+			for (Block block : file.blocks.values()) {
+				if (block.busy) {
+					waiting = true;
+				}
+				else if (block.dirty) {
+					block.busy = true;
+					run[count++] = block;
+				}
+			}
+
+			if (count == 0) {
+				if (!waiting)
+					return;
+
+				blockFree.sleep();
+				continue;
+			}
+
+			Arrays.sort(run, 0, count, byNumber);
+			writeBack(file, run, count);
+		}
+	}
+
+	/**
+	 * Write back <i>count</i> busy blocks of <i>file</i>, sorted by block
+	 * number, each run of consecutive blocks as a single request, and then
+	 * release them.
+	 */
+	private void writeBack(CachedFile file, Block[] run, int count) {
+		for (int i = 0; i < count;) {
+			int j = i + 1;
+			while (j < count && j - i < maxTransferBlocks
+					&& run[j].number == run[j - 1].number + 1)
+				j++;
+
+			writeBack(file, run, i, j - i);
+			i = j;
+		}
+
+		for (int i = 0; i < count; i++)
+			release(run[i]);
+	}
+
+	/**
+	 * Drop a reference to <i>file</i>. When the last one is dropped, write
+	 * back its blocks, or discard them if it has been removed, and close the
+	 * underlying file.
+	 */
+	private void drop(CachedFile file) {
+		if (--file.refs > 0)
+			return;
+
+		if (file.removed)
+			invalidate(file);
+		else
+			flush(file);
+
+		// it may have been opened again while flushing
+		if (file.refs == 0) {
+			file.file.close();
+			file.file = null;
+			forget(file);
+		}
+	}
+
+	/**
+	 * Ask the background thread to read in, or write back, blocks
+	 * <i>first</i> to <i>first+count-1</i> of <i>file</i>. The request is
+	 * only a hint, and is dropped if too many are already waiting.
+	 *
+	 * @return <tt>true</tt> if the request was added.
+	 */
+	private boolean schedule(CachedFile file, int first, int count,
+			boolean reading) {
+		if (requests.size() >= maxRequests)
+			return false;
+
+		if (daemon == null) {
+			daemon = new KThread(new Runnable() {
+				public void run() {
+					runDaemon();
+				}
+			}).setName("file cache");
+			daemon.fork();
+		}
+
+		// keep the underlying file open until the request is done
+		file.refs++;
+
+		requests.add(new Request(file, first, count, reading));
+		requestReady.wake();
+		return true;
+	}
+
+	private void runDaemon() {
+		lock.acquire();
+
+		while (true) {
+			while (requests.isEmpty())
+				requestReady.sleep();
+
+			Request request = requests.removeFirst();
+			if (request.reading)
+				readAhead(request.file, request.first, request.count);
+			else
+				writeBehind(request.file, request.first, request.count);
+
+			drop(request.file);
+		}
+	}
+
+	/**
+	 * Read in whichever of blocks <i>first</i> to <i>first+count-1</i> of
+	 * <i>file</i> aren't cached.
+	 */
+	private void readAhead(CachedFile file, int first, int count) {
+		int end = Math.min((first + count) * blockSize, file.length);
+		int pos = first * blockSize;
+
+		Block[] batch = new Block[maxBatch];
+		while (true) {
+			while (pos < end && file.blocks.containsKey(pos / blockSize))
+				pos = (pos / blockSize + 1) * blockSize;
+
+			if (pos >= end)
+				return;
+
+			int got = getBlocks(file, pos, end, true, batch);
+			if (got == 0)
+				return;
+
+			for (int i = 0; i < got; i++)
+				release(batch[i]);
+
+			pos = (batch[got - 1].number + 1) * blockSize;
+		}
+	}
+
+	/**
+	 * Write back whichever of blocks <i>first</i> to <i>first+count-1</i>
+	 * of <i>file</i> are dirty and not busy.
+	 */
+	private void writeBehind(CachedFile file, int first, int count) {
+		Block[] run = new Block[count];
+		int n = 0;
+
+		for (int number = first; number < first + count; number++) {
+			Block block = file.blocks.get(number);
+			if (block != null && block.dirty && !block.busy) {
+				block.busy = true;
+				run[n++] = block;
+			}
+		}
+
+		writeBack(file, run, n);
+	}
+
+	/**
+	 * Get the blocks of <i>file</i> holding bytes <i>pos</i> up to
+	 * <i>end</i>, or as many of them as will fit in <i>batch</i>, and mark
+	 * them busy. Blocks that aren't cached are allocated, and read in if
+	 * their contents are needed, with one request for each run of
+	 * consecutive blocks. If the cache runs short of blocks, fewer are
+	 * returned.
+	 *
+	 * @param file the file.
+	 * @param pos the first byte needed.
+	 * @param end the byte after the last one needed.
+	 * @param reading <tt>false</tt> if the bytes will be overwritten.
+	 * @param batch the array to hold the blocks.
+	 * @return the number of blocks returned, which is <tt>0</tt> only if the
+	 * first block couldn't be read.
+	 */
+	private int getBlocks(CachedFile file, int pos, int end, boolean reading,
+			Block[] batch) {
+		int first = pos / blockSize;
+		int count = Math.min((end - 1) / blockSize - first + 1, batch.length);
+
+		boolean[] load = new boolean[count];
+		int got = 0;
+
+		while (got < count) {
+			int number = first + got;
+			Block block = file.blocks.get(number);
+
+			if (block != null) {
+				if (block.busy) {
+					if (got > 0)
+						break;
+
+					blockFree.sleep();
+					continue;
+				}
+
+				block.busy = true;
+				block.used = true;
+				Machine.countFileCache(1, 0, 0);
+			}
+			else {
+				block = findVictim(got == 0);
+				if (block == null) {
+					if (got > 0)
+						break;
+
+					continue;
+				}
+
+				// the lock may have been released while finding a victim
+				if (file.blocks.containsKey(number)) {
+					release(block);
+					continue;
+				}
+
+				block.file = file;
+				block.number = number;
+				block.used = true;
+				file.blocks.put(number, block);
+				Machine.countFileCache(0, 1, 0);
+
+				int start = number * blockSize;
+				load[got] = start < file.length
+						&& (reading || start < pos || start + blockSize > end);
+
+				if (!load[got])
+					Arrays.fill(memory, block.offset, block.offset + blockSize,
+							(byte) 0);
+			}
+
+			batch[got++] = block;
+		}
+
+		for (int i = 0; i < got;) {
+			if (!load[i]) {
+				i++;
+				continue;
+			}
+
+			int j = i + 1;
+			while (j < got && load[j])
+				j++;
+
+			if (!readIn(file, batch, i, j - i)) {
+				// give up on this run and everything after it
+				for (int k = i; k < got; k++) {
+					if (load[k])
+						unmap(batch[k]);
+
+					release(batch[k]);
+				}
+
+				return i;
+			}
+
+			i = j;
+		}
+
+		return got;
+	}
+
+	/**
+	 * Read <i>count</i> consecutive blocks of <i>file</i> from the underlying
+	 * file system, zeroing whatever lies past the end of the file.
+	 */
+	private boolean readIn(CachedFile file, Block[] run, int start, int count) {
+		int[] offsets = new int[count];
+		int[] lengths = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			offsets[i] = run[start + i].offset;
+			lengths[i] = blockSize;
+		}
+
+		int pos = run[start].number * blockSize;
+
+		lock.release();
+		int amount = file.file.read(pos, memory, offsets, lengths, count);
+		lock.acquire();
+
+		if (amount < 0)
+			return false;
+
+		for (int i = 0; i < count; i++) {
+			int filled = Math.max(0, Math.min(amount - i * blockSize,
+					blockSize));
+
+			Arrays.fill(memory, offsets[i] + filled, offsets[i] + blockSize,
+					(byte) 0);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Write <i>count</i> consecutive busy blocks of <i>file</i> to the
+	 * underlying file system, and mark them clean.
+	 */
+	private void writeBack(CachedFile file, Block[] run, int start, int count) {
+		int[] offsets = new int[count];
+		int[] lengths = new int[count];
+		int total = 0;
+
+		for (int i = 0; i < count; i++) {
+			Block block = run[start + i];
+
+			offsets[i] = block.offset;
+			lengths[i] = Math.max(0, Math.min(blockSize, file.length
+					- block.number * blockSize));
+			total += lengths[i];
+
+			block.dirty = false;
+		}
+
+		if (total == 0 || file.removed)
+			return;
+
+		int pos = run[start].number * blockSize;
+
+		lock.release();
+		int amount = file.file.write(pos, memory, offsets, lengths, count);
+		lock.acquire();
+
+		if (amount != total)
+			Lib.debug(dbgCache, "write-back failed: " + file.name);
+
+		Machine.countFileCache(0, 0, count);
+	}
+
+	/**
+	 * Find a block to replace using the clock algorithm, write it back if it
+	 * is dirty, and remove it from the cache.
+	 *
+	 * @param canWait <tt>true</tt> if the caller holds no busy blocks.
+	 * @return a busy block holding no data, or <tt>null</tt> if every block
+	 * was busy or the lock was released to wait.
+	 */
+	private Block findVictim(boolean canWait) {
+		for (int i = 0; i < 2 * blocks.length; i++) {
+			Block block = blocks[hand];
+			hand = (hand + 1 == blocks.length) ? 0 : hand + 1;
+
+			if (block.busy)
+				continue;
+
+			if (block.file != null && block.used) {
+				block.used = false;
+				continue;
+			}
+
+			block.busy = true;
+			if (block.file != null) {
+				if (block.dirty)
+					writeBack(block.file, new Block[] { block }, 0, 1);
+
+				unmap(block);
+			}
+
+			return block;
+		}
+
+		if (canWait)
+			blockFree.sleep();
+
+		return null;
+	}
+
+	/**
+	 * Drop every cached block of <i>file</i> without writing it back.
+	 */
+	private void invalidate(CachedFile file) {
+		invalidate(file, 0);
+	}
+
+	/**
+	 * Drop every cached block of <i>file</i> past its first <i>length</i>
+	 * bytes without writing it back, and zero the end of the block holding
+	 * the last byte kept. Waits for any of those blocks being transferred,
+	 * so that no write still in progress can extend the file again.
+	 */
+	private void invalidate(CachedFile file, int length) {
+		int partial = length / blockSize;
+		int first = (length % blockSize == 0) ? partial : partial + 1;
+
+		while (true) {
+			boolean waiting = false;
+
+			Block[] cached = file.blocks.values().toArray(new Block[0]);
+			for (int i = 0; i < cached.length; i++) {
+				if (cached[i].number < partial)
+					continue;
+
+				if (cached[i].busy)
+					waiting = true;
+				else if (cached[i].number >= first)
+					unmap(cached[i]);
+			}
+
+			if (!waiting)
+				break;
+
+			blockFree.sleep();
+		}
+
+		Block last = (first != partial) ? file.blocks.get(partial) : null;
+		if (last != null)
+			Arrays.fill(memory, last.offset + length % blockSize, last.offset
+					+ blockSize, (byte) 0);
+	}
+
+	private void unmap(Block block) {
+		CachedFile file = block.file;
+
+		file.blocks.remove(block.number);
+		block.file = null;
+		block.dirty = false;
+
+		forget(file);
+	}
+
+	private void release(Block block) {
+		block.busy = false;
+		blockFree.wakeAll();
+	}
+
+	/**
+	 * Stop tracking <i>file</i> once it is closed and has nothing cached.
+	 */
+	private void forget(CachedFile file) {
+		if (file.refs == 0 && file.blocks.isEmpty()
+				&& files.get(file.name) == file)
+			files.remove(file.name);
+	}
+
+	private static final Comparator<Block> byNumber = new Comparator<Block>() {
+		public int compare(Block a, Block b) {
+			return (a.number < b.number) ? -1 : (a.number == b.number) ? 0
+					: 1;
+		}
+	};
+
+	/**
+	 * A request for the background thread.
+	 */
+	private class Request {
+		Request(CachedFile file, int first, int count, boolean reading) {
+			this.file = file;
+			this.first = first;
+			this.count = count;
+			this.reading = reading;
+		}
+
+		CachedFile file;
+
+		int first, count;
+
+		/** <tt>true</tt> to read ahead, <tt>false</tt> to write behind. */
+		boolean reading;
+	}
+
+	/**
+	 * A file with cached blocks or open handles.
+	 */
+	private class CachedFile {
+		CachedFile(String name) {
+			this.name = name;
+		}
+
+		String name;
+
+		/** The underlying file, or <tt>null</tt> if there are no handles. */
+		OpenFile file = null;
+
+		/** The length of the file, including writes not yet written back. */
+		int length = -1;
+
+		/** The number of open handles and background requests. */
+		int refs = 0;
+
+		/** <tt>true</tt> while the underlying file is being opened. */
+		boolean opening = false;
+
+		/** <tt>true</tt> once the file is removed; it is never written back. */
+		boolean removed = false;
+
+		/** The cached blocks of the file, by block number. */
+		HashMap<Integer, Block> blocks = new HashMap<Integer, Block>();
+	}
+
+	/**
+	 * One block of the cache.
+	 */
+	private class Block {
+		Block(int offset) {
+			this.offset = offset;
+		}
+
+		/** Where the block's data starts in <tt>memory</tt>. */
+		final int offset;
+
+		/** The file the block belongs to, or <tt>null</tt> if it is free. */
+		CachedFile file = null;
+
+		/** The block's number within its file. */
+		int number;
+
+		boolean dirty = false;
+
+		boolean busy = false;
+
+		/** The clock algorithm's reference bit. */
+		boolean used = false;
+	}
+
+	/**
+	 * A handle on a cached file.
+	 */
+	private class CachedOpenFile extends OpenFileWithPosition {
+		CachedOpenFile(CachedFile file) {
+			super(CachedFileSystem.this, file.name);
+
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			return read(pos, buf, offset, length, false);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			return write(pos, buf, offset, length, false);
+		}
+
+		/**
+		 * Read from the current position. Only reads like this, as a stream,
+		 * are read ahead; a read at a given position is random access.
+		 */
+		public int read(byte[] buf, int offset, int length) {
+			int amount = read(position, buf, offset, length, true);
+			if (amount == -1)
+				return -1;
+
+			position += amount;
+			return amount;
+		}
+
+		/**
+		 * Write at the current position. Only writes like this, as a stream,
+		 * are written behind; a write at a given position is random access.
+		 */
+		public int write(byte[] buf, int offset, int length) {
+			int amount = write(position, buf, offset, length, true);
+			if (amount == -1)
+				return -1;
+
+			position += amount;
+			return amount;
+		}
+
+		private int read(int pos, byte[] buf, int offset, int length,
+				boolean stream) {
+			if (pos < 0 || length < 0)
+				return -1;
+
+			lock.acquire();
+
+			if (file == null) {
+				lock.release();
+				return -1;
+			}
+
+			int end = (int) Math.min((long) pos + length, file.length);
+			int total = 0;
+
+			Block[] batch = new Block[maxBatch];
+			while (pos < end) {
+				int got = getBlocks(file, pos, end, true, batch);
+				if (got == 0)
+					break;
+
+				for (int i = 0; i < got; i++) {
+					int within = pos % blockSize;
+					int amount = Math.min(blockSize - within, end - pos);
+
+					System.arraycopy(memory, batch[i].offset + within, buf,
+							offset + total, amount);
+					release(batch[i]);
+
+					pos += amount;
+					total += amount;
+				}
+			}
+
+			boolean scheduled = stream && total > 0
+					&& noteRead(pos - total, pos);
+
+			lock.release();
+
+			// the timer doesn't preempt, so let the background thread start
+			if (scheduled)
+				KThread.yield();
+
+			return (total == 0 && pos < end) ? -1 : total;
+		}
+
+		/**
+		 * If bytes <i>pos</i> up to <i>end</i> follow on from the last read,
+		 * keep <tt>readAhead</tt> blocks read in past them, asking for more
+		 * once half of those have been read.
+		 *
+		 * @return <tt>true</tt> if blocks were asked to be read ahead.
+		 */
+		private boolean noteRead(int pos, int end) {
+			boolean sequential = (pos == lastEnd);
+			lastEnd = end;
+
+			if (!sequential) {
+				readAheadEnd = 0;
+				return false;
+			}
+
+			if (readAhead == 0)
+				return false;
+
+			int next = end / blockSize;
+			int limit = (file.length + blockSize - 1) / blockSize;
+			int target = Math.min(next + readAhead, limit);
+
+			if (readAheadEnd < next)
+				readAheadEnd = next;
+
+			if (readAheadEnd - next > readAhead / 2 || target <= readAheadEnd)
+				return false;
+
+			int first = readAheadEnd;
+			readAheadEnd = target;
+
+			return schedule(file, first, target - first, true);
+		}
+
+		private int write(int pos, byte[] buf, int offset, int length,
+				boolean stream) {
+			if (pos < 0 || length < 0)
+				return -1;
+
+			lock.acquire();
+
+			if (file == null) {
+				lock.release();
+				return -1;
+			}
+
+			int end = (int) Math.min((long) pos + length, Integer.MAX_VALUE);
+			int total = 0;
+
+			Block[] batch = new Block[maxBatch];
+			while (pos < end) {
+				int got = getBlocks(file, pos, end, false, batch);
+				if (got == 0)
+					break;
+
+				for (int i = 0; i < got; i++) {
+					int within = pos % blockSize;
+					int amount = Math.min(blockSize - within, end - pos);
+
+					System.arraycopy(buf, offset + total, memory,
+							batch[i].offset + within, amount);
+
+					pos += amount;
+					total += amount;
+
+					batch[i].dirty = true;
+					if (pos > file.length)
+						file.length = pos;
+
+					release(batch[i]);
+				}
+			}
+
+			boolean scheduled = stream && total > 0
+					&& noteWrite(pos - total, pos);
+
+			lock.release();
+
+			// the timer doesn't preempt, so let the background thread start
+			if (scheduled)
+				KThread.yield();
+
+			return (total == 0 && length > 0) ? -1 : total;
+		}
+
+		/**
+		 * If bytes <i>pos</i> up to <i>end</i> follow on from the last write,
+		 * write back the blocks completed since the last write-behind, once
+		 * there are <tt>writeBehind</tt> of them.
+		 *
+		 * @return <tt>true</tt> if blocks were asked to be written back.
+		 */
+		private boolean noteWrite(int pos, int end) {
+			if (pos != lastEnd)
+				writeBehindFrom = pos / blockSize;
+
+			lastEnd = end;
+
+			int completed = end / blockSize;
+			if (writeBehind == 0 || completed - writeBehindFrom < writeBehind)
+				return false;
+
+			int first = writeBehindFrom;
+			writeBehindFrom = completed;
+
+			return schedule(file, first, completed - first, false);
+		}
+
+		public int length() {
+			return (file != null) ? file.length : -1;
+		}
+
+		/**
+		 * Drop the cached blocks past <i>length</i>, then shorten the
+		 * underlying file.
+		 */
+		public boolean truncate(int length) {
+			if (length < 0)
+				return false;
+
+			lock.acquire();
+
+			if (file == null) {
+				lock.release();
+				return false;
+			}
+
+			boolean truncated = true;
+			if (length < file.length) {
+				invalidate(file, length);
+
+				truncated = file.file.truncate(length);
+				if (truncated)
+					file.length = length;
+			}
+
+			lock.release();
+
+			return truncated;
+		}
+
+		public void close() {
+			lock.acquire();
+
+			if (file != null) {
+				flush(file);
+				drop(file);
+
+				file = null;
+				openCount--;
+			}
+
+			lock.release();
+		}
+
+		/** The file, or <tt>null</tt> once this handle is closed. */
+		private CachedFile file;
+
+		/** The byte after the last one read or written. */
+		private int lastEnd = 0;
+
+		/** The block after the last one asked to be read ahead. */
+		private int readAheadEnd = 0;
+
+		/** The first block not yet asked to be written behind. */
+		private int writeBehindFrom = 0;
+	}
+
+	/** The most blocks transferred in one request. */
+	private static final int maxTransferBlocks = 16;
+
+	private FileSystem fileSystem;
+
+	private int blockSize;
+
+	/** The data of every block. */
+	private byte[] memory;
+
+	private Block[] blocks;
+
+	/** The most blocks one read or write holds busy at once. */
+	private int maxBatch;
+
+	/** The number of blocks to read ahead of a sequential reader. */
+	private int readAhead;
+
+	/** The number of blocks a sequential writer completes at a time. */
+	private int writeBehind;
+
+	/** The most requests that can wait for the background thread. */
+	private static final int maxRequests = 16;
+
+	/** The background thread, started by the first request. */
+	private KThread daemon = null;
+
+	private LinkedList<Request> requests = new LinkedList<Request>();
+
+	/** The next block the clock algorithm will look at. */
+	private int hand = 0;
+
+	/** The files with cached blocks or open handles, by name. */
+	private HashMap<String, CachedFile> files = new HashMap<String, CachedFile>();
+
+	private int openCount = 0;
+
+	private Lock lock = new Lock();
+
+	/** Signalled when a block stops being busy, or a file finishes opening. */
+	private Condition blockFree = new Condition(lock);
+
+	/** Signalled when a request is added for the background thread. */
+	private Condition requestReady = new Condition(lock);
+
+	private static final char dbgCache = 'c';
+}
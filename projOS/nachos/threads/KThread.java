@@ -56,6 +56,10 @@ public class KThread {
 	public KThread() {
 		if (currentThread != null) {
 			tcb = new TCB();
+
+			if (ThreadedKernel.schedulerStats != null)
+				schedulerRecord = ThreadedKernel.schedulerStats.add(this,
+						SchedulerStats.none);
 		}
 		else {
 			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
@@ -66,6 +70,10 @@ public class KThread {
 			name = "main";
 			restoreState();
 
+			if (ThreadedKernel.schedulerStats != null)
+				schedulerRecord = ThreadedKernel.schedulerStats.add(this,
+						SchedulerStats.running);
+
 			createIdleThread();
 		}
 	}
@@ -262,6 +270,17 @@ public class KThread {
 		if (currentThread.status != statusFinished)
 			currentThread.status = statusBlocked;
 
+		if (currentThread.schedulerRecord != null) {
+			if (currentThread.status == statusBlocked) {
+				currentThread.schedulerRecord.enter(SchedulerStats.blocked);
+			}
+			else {
+				ThreadedKernel.schedulerStats.remove(
+						currentThread.schedulerRecord);
+				currentThread.schedulerRecord = null;
+			}
+		}
+
 		runNextThread();
 	}
 
@@ -277,6 +296,9 @@ public class KThread {
 
 		//System.out.println("Ready: " + toString());
 		status = statusReady;
+		if (schedulerRecord != null)
+			schedulerRecord.enter(SchedulerStats.ready);
+
 		if (this != idleThread)
 			readyQueue.waitForAccess(this);
 
@@ -342,8 +364,16 @@ public class KThread {
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
 		//System.out.println(nextThread);
-		if (nextThread == null)
+		if (nextThread == null) {
+			// only an interrupt can make another thread ready
+			if (currentThread == idleThread)
+				Machine.interrupt().idle();
+
 			nextThread = idleThread;
+		}
+
+		if (nextThread.schedulerRecord != null)
+			nextThread.schedulerRecord.enter(SchedulerStats.running);
 
 		nextThread.run();
 	}
@@ -452,6 +482,12 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 
+	/**
+	 * The time this thread has spent in each state, if
+	 * <tt>ThreadedKernel.schedulerStats</tt> is set.
+	 */
+	private SchedulerStats.Record schedulerRecord = null;
+
 	private static final int statusNew = 0;
 
 	private static final int statusReady = 1;
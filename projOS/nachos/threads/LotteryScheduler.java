@@ -2,29 +2,32 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
- * 
+ *
  * <p>
  * A lottery scheduler associates a number of tickets with each thread. When a
  * thread needs to be dequeued, a random lottery is held, among all the tickets
  * of all the threads waiting to be dequeued. The thread that holds the winning
  * ticket is chosen.
- * 
+ *
  * <p>
  * Note that a lottery scheduler must be able to handle a lot of tickets
  * (sometimes billions), so it is not acceptable to maintain state for every
  * ticket.
- * 
+ *
  * <p>
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ *
+ * <p>
+ * Each queue keeps the effective tickets of its waiting threads in a Fenwick
+ * tree, indexed by a slot assigned to each waiting thread, so holding a
+ * lottery, adding a waiter and removing one all take logarithmic time. Since
+ * tickets add, a change in a thread's effective tickets is passed down the
+ * donation chain as a difference, without recomputing any sums.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -35,13 +38,403 @@ public class LotteryScheduler extends PriorityScheduler {
 
 	/**
 	 * Allocate a new lottery thread queue.
-	 * 
+	 *
 	 * @param transferPriority <tt>true</tt> if this queue should transfer
 	 * tickets from waiting threads to the owning thread.
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getLotteryState(thread).getTickets();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long tickets = getLotteryState(thread).getEffectiveTickets();
+		return (int) Math.min(tickets, Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getLotteryState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/** The number of donation chains walked so far. */
+	private int numWalks = 0;
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			// the current owner no longer has access
+			if (owner != null) {
+				LotteryState oldOwner = owner;
+				owner = null;
+
+				if (transferPriority)
+					oldOwner.addTickets(-totalTickets);
+			}
+
+			LotteryState next = pickNextThread();
+			if (next == null)
+				return null;
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads, without modifying the
+		 * state of this queue.
+		 *
+		 * @return the winning thread, or <tt>null</tt> if none is waiting.
+		 */
+		protected LotteryState pickNextThread() {
+			if (numWaiting == 0)
+				return null;
+
+			long winner = (long) (Lib.random() * totalTickets);
+			if (winner >= totalTickets)
+				winner = totalTickets - 1;
+
+			return slots[find(winner)];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + "("
+							+ slots[i].effectiveTickets + ") ");
+			}
+
+			System.out.println();
+		}
+
+		void add(LotteryState state) {
+			if (numFree == 0)
+				grow();
+
+			state.slot = freeSlots[--numFree];
+			slots[state.slot] = state;
+			numWaiting++;
+
+			update(state.slot, state.effectiveTickets);
+		}
+
+		void remove(LotteryState state) {
+			update(state.slot, -state.effectiveTickets);
+
+			slots[state.slot] = null;
+			freeSlots[numFree++] = state.slot;
+			numWaiting--;
+
+			state.slot = -1;
+			state.waitingOn = null;
+		}
+
+		/**
+		 * Add <i>delta</i> tickets to slot <i>slot</i>.
+		 */
+		void update(int slot, long delta) {
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+
+			totalTickets += delta;
+		}
+
+		/**
+		 * Return the slot holding ticket number <i>ticket</i>, that is, the
+		 * first slot at which the running total of tickets exceeds it.
+		 */
+		private int find(long ticket) {
+			int i = 0;
+
+			int step = Integer.highestOneBit(slots.length);
+
+			for (; step > 0; step >>= 1) {
+				if (i + step <= slots.length && tree[i + step] <= ticket) {
+					i += step;
+					ticket -= tree[i];
+				}
+			}
+
+			return i;
+		}
+
+		/**
+		 * Double the number of slots, rebuilding the tree. Only called when
+		 * every slot is in use.
+		 */
+		private void grow() {
+			LotteryState[] oldSlots = slots;
+
+			slots = new LotteryState[Math.max(2 * oldSlots.length, 8)];
+			tree = new long[slots.length + 1];
+			totalTickets = 0;
+
+			// the lowest new slot ends up on top
+			freeSlots = new int[slots.length];
+			for (int i = slots.length - 1; i >= oldSlots.length; i--)
+				freeSlots[numFree++] = i;
+
+			for (int i = 0; i < oldSlots.length; i++) {
+				slots[i] = oldSlots[i];
+				if (slots[i] != null)
+					update(i, slots[i].effectiveTickets);
+			}
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The thread that currently has access, or <tt>null</tt>. */
+		LotteryState owner = null;
+
+		/** The sum of the effective tickets of the waiting threads. */
+		long totalTickets = 0;
+
+		private int numWaiting = 0;
+
+		/** The waiting thread in each slot, or <tt>null</tt>. */
+		private LotteryState[] slots = new LotteryState[0];
+
+		/** The Fenwick tree over the tickets in each slot, 1-indexed. */
+		private long[] tree = new long[1];
+
+		/** A stack of the unused slots, <tt>numFree</tt> deep. */
+		private int[] freeSlots = new int[0];
+
+		private int numFree = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its tickets, its effective tickets
+	 * (its own plus those donated through the queues it owns), and the queue
+	 * it's waiting for, if any.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+
+			tickets = priorityDefault;
+			effectiveTickets = priorityDefault;
+		}
+
+		/**
+		 * Return the number of tickets held by the associated thread.
+		 *
+		 * @return the number of tickets.
+		 */
+		public int getTickets() {
+			return tickets;
+		}
+
+		/**
+		 * Return the number of tickets held by the associated thread, plus
+		 * all the tickets donated to it.
+		 *
+		 * @return the number of effective tickets.
+		 */
+		public long getEffectiveTickets() {
+			return effectiveTickets;
+		}
+
+		/**
+		 * Set the number of tickets held by the associated thread.
+		 *
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			int delta = tickets - this.tickets;
+			this.tickets = tickets;
+
+			addTickets(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on
+		 * <tt>waitQueue</tt>.
+		 *
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 *
+		 * @see nachos.threads.ThreadQueue#waitForAccess
+		 */
+		public void waitForAccess(LotteryQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.addTickets(effectiveTickets);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 *
+		 * @see nachos.threads.ThreadQueue#acquire
+		 * @see nachos.threads.ThreadQueue#nextThread
+		 */
+		public void acquire(LotteryQueue waitQueue) {
+			waitQueue.owner = this;
+
+			if (waitQueue.transferPriority)
+				addTickets(waitQueue.totalTickets);
+		}
+
+		/**
+		 * Add <i>delta</i> to the effective tickets of the associated thread,
+		 * and to those of every thread further down the donation chain. Each
+		 * thread is visited at most once, so the walk ends even if the chain
+		 * runs into a cycle (a deadlock), whether or not it passes through
+		 * this thread.
+		 */
+		void addTickets(long delta) {
+			if (delta == 0)
+				return;
+
+			int walk = ++numWalks;
+			LotteryState state = this;
+
+			while (state.lastWalk != walk) {
+				state.lastWalk = walk;
+				state.effectiveTickets += delta;
+
+				LotteryQueue queue = state.waitingOn;
+				if (queue == null)
+					return;
+
+				queue.update(state.slot, delta);
+
+				if (!queue.transferPriority)
+					return;
+
+				state = queue.owner;
+				if (state == null)
+					return;
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets held by the associated thread. */
+		protected int tickets;
+
+		/** The tickets held by the associated thread plus its donations. */
+		protected long effectiveTickets;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected LotteryQueue waitingOn = null;
+
+		/** The slot of this thread in <tt>waitingOn</tt>. */
+		int slot = -1;
+
+		/** The last donation chain walk to visit this thread. */
+		private int lastWalk = 0;
 	}
 }
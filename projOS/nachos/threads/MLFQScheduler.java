@@ -0,0 +1,294 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept at one of several
+ * levels, and the next thread to receive access is always the first thread at
+ * the highest non-empty level; within a level, access is first-come
+ * first-serve.
+ *
+ * <p>
+ * Every thread starts at the highest level (level 0). Each level has a
+ * quantum, measured in timer interrupts and doubling with each level down. A
+ * thread that uses up its quantum at a level is preempted and moved down a
+ * level, while a thread that blocks before then keeps its level, so threads
+ * that mostly wait on I/O stay ahead of threads that compute. The time used
+ * at a level is kept across blocking, so a thread can't hold on to its level
+ * by yielding just before the timer fires.
+ *
+ * <p>
+ * Every <tt>MLFQScheduler.boostInterval</tt> timer interrupts, every thread is
+ * moved back to the highest level, so that compute-bound threads are not
+ * starved. The boost is applied lazily: each thread and each queue remembers
+ * the last boost it has seen, and catches up the next time it is used.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 3);
+		quantum = Config.getInteger("MLFQScheduler.quantum", 1);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 50);
+
+		Lib.assertTrue(numLevels > 0 && quantum > 0 && boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new multi-level thread queue.
+	 *
+	 * @param transferPriority ignored. Levels are not transferred.
+	 * @return a new multi-level thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MultiLevelQueue();
+	}
+
+	/**
+	 * Return the level of the specified thread, where 0 is the highest.
+	 *
+	 * @param thread the thread whose level to return.
+	 * @return the level of the thread.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Charge the current thread for one timer interrupt. If it has used up
+	 * its quantum, move it down a level and preempt it.
+	 */
+	public boolean timerInterrupt() {
+		return charge(KThread.currentThread());
+	}
+
+	/**
+	 * Charge the specified thread for one timer interrupt.
+	 *
+	 * @param thread the thread that was running.
+	 * @return <tt>true</tt> if the thread has used up its quantum.
+	 */
+	private boolean charge(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (++sinceBoost >= boostInterval) {
+			sinceBoost = 0;
+			boosts++;
+		}
+
+		ThreadState state = getThreadState(thread);
+		int level = state.getLevel();
+
+		if (++state.used < quantum << level)
+			return false;
+
+		state.used = 0;
+		if (level < numLevels - 1)
+			state.level = level + 1;
+
+		return true;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Test that a thread that uses up its quanta moves down, and that a
+	 * boost moves it back up. The test uses its own scheduler, so it does
+	 * not depend on which scheduler the kernel is running.
+	 */
+	public static void selfTest() {
+		KThread a = new KThread().setName("mlfq a");
+		KThread b = new KThread().setName("mlfq b");
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		MLFQScheduler s = new MLFQScheduler();
+		s.numLevels = 3;
+		s.quantum = 1;
+		s.boostInterval = 4;
+
+		ThreadQueue queue = s.newThreadQueue(false);
+
+		// a uses up one interrupt at level 0, then two at level 1
+		Lib.assertTrue(s.charge(a) && s.getPriority(a) == 1);
+		Lib.assertTrue(!s.charge(a) && s.charge(a) && s.getPriority(a) == 2);
+
+		// b is still at level 0, so it goes first although a waited first
+		queue.waitForAccess(a);
+		queue.waitForAccess(b);
+		Lib.assertTrue(queue.nextThread() == b);
+
+		// the fourth interrupt boosts, then b uses up its quantum at level 0
+		Lib.assertTrue(s.charge(b) && s.getPriority(b) == 1);
+
+		// now a is back at level 0, ahead of b
+		queue.waitForAccess(b);
+		Lib.assertTrue(s.getPriority(a) == 0);
+		Lib.assertTrue(queue.nextThread() == a);
+		Lib.assertTrue(queue.nextThread() == b);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private class MultiLevelQueue extends ThreadQueue {
+		MultiLevelQueue() {
+			levels = new ArrayList<LinkedList<KThread>>(numLevels);
+			for (int i = 0; i < numLevels; i++)
+				levels.add(new LinkedList<KThread>());
+		}
+
+		/**
+		 * Add a thread to the end of the list for its level.
+		 *
+		 * @param thread the thread to append to the queue.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			catchUp();
+			levels.get(getThreadState(thread).getLevel()).add(thread);
+			size++;
+		}
+
+		/**
+		 * Remove the first thread at the highest non-empty level.
+		 *
+		 * @return the first thread on the queue, or <tt>null</tt> if the queue
+		 * is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (size == 0)
+				return null;
+
+			catchUp();
+			for (int i = 0; i < numLevels; i++) {
+				if (!levels.get(i).isEmpty()) {
+					size--;
+					return levels.get(i).removeFirst();
+				}
+			}
+
+			Lib.assertNotReached();
+			return null;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+		 * threads are waiting for access.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(size == 0);
+		}
+
+		/**
+		 * Print out the contents of the queue, highest level first.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numLevels; i++) {
+				for (Iterator<KThread> j = levels.get(i).iterator(); j
+						.hasNext();)
+					System.out.print(j.next() + "[" + i + "] ");
+			}
+		}
+
+		/**
+		 * If there has been a boost since this queue was last used, move every
+		 * waiting thread to the highest level, keeping their order.
+		 */
+		private void catchUp() {
+			if (boost == boosts)
+				return;
+
+			boost = boosts;
+
+			for (int i = 1; i < numLevels; i++) {
+				levels.get(0).addAll(levels.get(i));
+				levels.get(i).clear();
+			}
+		}
+
+		private ArrayList<LinkedList<KThread>> levels;
+
+		private int size = 0;
+
+		/** The last boost this queue has seen. */
+		private int boost = boosts;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, and how much of the
+	 * quantum at that level it has used.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Return the level of the associated thread, moving it to the highest
+		 * level if there has been a boost since it was last checked.
+		 *
+		 * @return the level of the associated thread.
+		 */
+		public int getLevel() {
+			if (boost != boosts) {
+				boost = boosts;
+				level = 0;
+				used = 0;
+			}
+
+			return level;
+		}
+
+		/** The level of the associated thread. */
+		protected int level = 0;
+
+		/** The timer interrupts used at the current level. */
+		protected int used = 0;
+
+		/** The last boost this thread has seen. */
+		private int boost = boosts;
+	}
+
+	/** The number of levels. */
+	private int numLevels;
+
+	/** The quantum at the highest level, in timer interrupts. */
+	private int quantum;
+
+	/** The number of timer interrupts between boosts. */
+	private int boostInterval;
+
+	private int sinceBoost = 0;
+
+	/** The number of boosts so far. */
+	private int boosts = 0;
+}
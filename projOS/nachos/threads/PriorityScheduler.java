@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -25,6 +23,14 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ * 
+ * <p>
+ * Each queue keeps its waiting threads in a binary heap ordered by effective
+ * priority, and then by the order in which they started waiting. Each thread
+ * caches its effective priority. When it changes, the thread is moved within
+ * the heap it is waiting in, and the change is passed on to the owner of that
+ * queue, and so on down the donation chain, stopping as soon as an effective
+ * priority is left unchanged.
  */
 public class PriorityScheduler extends Scheduler {
 	/**
@@ -145,8 +151,28 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			// the current owner no longer has access
+			if (owner != null) {
+				ThreadState oldOwner = owner;
+				owner = null;
+
+				if (transferPriority) {
+					oldOwner.owned.remove(this);
+					oldOwner.updateEffectivePriority();
+				}
+			}
+
+			if (size == 0)
+				return null;
+
+			ThreadState next = heap[0];
+			remove(next);
+			next.waitingOn = null;
+
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +182,120 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			return (size == 0) ? null : heap[0];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + "("
+						+ heap[i].effectivePriority + ") ");
+
+			System.out.println();
+		}
+
+		/**
+		 * Return the priority this queue donates to its owner: the highest
+		 * effective priority of any waiting thread.
+		 * 
+		 * @return the donated priority, or <tt>priorityMinimum</tt> if no
+		 * priority is transferred or no thread is waiting.
+		 */
+		int getDonation() {
+			if (!transferPriority || size == 0)
+				return priorityMinimum;
+
+			return heap[0].effectivePriority;
+		}
+
+		void add(ThreadState state) {
+			if (size == heap.length) {
+				ThreadState[] newHeap = new ThreadState[heap.length * 2];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+
+			state.heapIndex = size++;
+			heap[state.heapIndex] = state;
+
+			siftUp(state.heapIndex);
+		}
+
+		void remove(ThreadState state) {
+			int i = state.heapIndex;
+			Lib.assertTrue(heap[i] == state);
+
+			size--;
+			if (i != size) {
+				place(heap[size], i);
+				reposition(heap[i]);
+			}
+
+			heap[size] = null;
+			state.heapIndex = -1;
+		}
+
+		/**
+		 * Restore the heap order after the effective priority of
+		 * <i>state</i>, a waiting thread, has changed.
+		 */
+		void reposition(ThreadState state) {
+			siftDown(siftUp(state.heapIndex));
+		}
+
+		private int siftUp(int i) {
+			ThreadState state = heap[i];
+
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				place(heap[parent], i);
+				i = parent;
+			}
+
+			place(state, i);
+			return i;
+		}
+
+		private int siftDown(int i) {
+			ThreadState state = heap[i];
+
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], state))
+					break;
+
+				place(heap[child], i);
+				i = child;
+			}
+
+			place(state, i);
+			return i;
+		}
+
+		private void place(ThreadState state, int i) {
+			heap[i] = state;
+			state.heapIndex = i;
+		}
+
+		/**
+		 * Higher effective priority goes first; among equals, the thread
+		 * that has been waiting longest.
+		 */
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.effectivePriority != b.effectivePriority)
+				return a.effectivePriority > b.effectivePriority;
+			else
+				return a.waitTime < b.waitTime;
 		}
 
 		/**
@@ -170,6 +303,14 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The thread that currently has access, or <tt>null</tt>. */
+		ThreadState owner = null;
+
+		/** The waiting threads, as a binary heap. */
+		private ThreadState[] heap = new ThreadState[8];
+
+		private int size = 0;
 	}
 
 	/**
@@ -207,8 +348,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +362,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +378,14 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitTime = numWaits++;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.updateEffectivePriority();
 		}
 
 		/**
@@ -252,7 +399,41 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			waitQueue.owner = this;
+
+			if (waitQueue.transferPriority) {
+				owned.add(waitQueue);
+				updateEffectivePriority();
+			}
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread from its
+		 * own priority and the donations of the queues it owns. If it
+		 * changed, move the thread within the queue it is waiting on and pass
+		 * the change on to that queue's owner.
+		 */
+		void updateEffectivePriority() {
+			ThreadState state = this;
+
+			while (state != null) {
+				int effective = state.priority;
+				for (PriorityQueue queue : state.owned)
+					effective = Math.max(effective, queue.getDonation());
+
+				if (effective == state.effectivePriority)
+					return;
+
+				state.effectivePriority = effective;
+
+				PriorityQueue queue = state.waitingOn;
+				if (queue == null)
+					return;
+
+				queue.reposition(state);
+
+				state = queue.transferPriority ? queue.owner : null;
+			}
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +441,23 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitingOn = null;
+
+		/** The priority-transferring queues the associated thread owns. */
+		protected LinkedList<PriorityQueue> owned = new LinkedList<PriorityQueue>();
+
+		/** The position of this thread in <tt>waitingOn</tt>'s heap. */
+		int heapIndex = -1;
+
+		/** When the associated thread started waiting on its queue. */
+		long waitTime;
 	}
+
+	/** The number of calls to <tt>ThreadState.waitForAccess()</tt>. */
+	private long numWaits = 0;
 }
@@ -151,4 +151,16 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called by the alarm on every timer interrupt, with interrupts disabled,
+	 * to charge the current thread for the time slice it has been using.
+	 * 
+	 * @return <tt>true</tt> if the current thread should be preempted. By
+	 * default, threads are never preempted.
+	 */
+	public boolean timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return false;
+	}
 }
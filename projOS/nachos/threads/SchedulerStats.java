@@ -0,0 +1,287 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Records how long each <tt>KThread</tt> spends ready, running and blocked,
+ * both in simulated ticks and in wall-clock nanoseconds, so that schedulers
+ * can be compared. It is enabled by setting
+ * <tt>ThreadedKernel.schedulerStats</tt> to <tt>true</tt>, and its report is
+ * printed when the kernel terminates.
+ *
+ * <p>
+ * Each thread gets a <tt>Record</tt> when it is created. <tt>KThread</tt>
+ * calls <tt>Record.enter()</tt> each time the thread changes state, which
+ * adds the length of the interval just ended to a histogram for the state
+ * being left. The histograms are allocated with the record, so recording an
+ * interval never allocates. When a thread finishes, its record is folded
+ * into the totals for finished threads and released, so only live threads
+ * hold a record.
+ *
+ * <p>
+ * The report gives, for every live thread, for the finished threads and for
+ * all threads together, the number of intervals in each state, their total
+ * length, and the 50th, 90th and 99th percentile and maximum lengths. The
+ * same figures are then printed as CSV, straight to the host's console, so
+ * that writing the report neither depends on nor disturbs the kernel's file
+ * system.
+ */
+public class SchedulerStats {
+	/**
+	 * Allocate a new, empty set of records.
+	 */
+	public SchedulerStats() {
+	}
+
+	/**
+	 * Allocate a record for the specified thread.
+	 *
+	 * @param thread the thread to record.
+	 * @param state the state the thread starts out in.
+	 * @return the new record.
+	 */
+	Record add(KThread thread, int state) {
+		Record record = new Record(thread);
+
+		record.next = live;
+		if (live != null)
+			live.prev = record;
+		live = record;
+
+		record.enter(state);
+		return record;
+	}
+
+	/**
+	 * Close the record of a thread that has finished, add it to the totals
+	 * for finished threads, and forget it.
+	 *
+	 * @param record the record of the finished thread.
+	 */
+	void remove(Record record) {
+		record.enter(none);
+		finished.addAll(record);
+		numFinished++;
+
+		if (record.prev != null)
+			record.prev.next = record.next;
+		else
+			live = record.next;
+		if (record.next != null)
+			record.next.prev = record.prev;
+
+		record.prev = record.next = null;
+	}
+
+	/**
+	 * Close every interval still open, then print the report and the CSV
+	 * dump.
+	 */
+	public void print() {
+		Record all = new Record(null);
+
+		for (Record record = live; record != null; record = record.next) {
+			record.enter(none);
+			all.addAll(record);
+		}
+		all.addAll(finished);
+
+		System.out.println("Scheduler stats (ticks; microseconds):");
+		System.out.println(pad("thread", 24) + pad("state", 9)
+				+ pad("count", 8) + pad("total", 24) + pad("p50", 16)
+				+ pad("p90", 16) + pad("p99", 16) + "max");
+
+		StringBuffer csv = new StringBuffer("thread,state,count,"
+				+ "totalTicks,p50Ticks,p90Ticks,p99Ticks,maxTicks,"
+				+ "totalNanos,p50Nanos,p90Nanos,p99Nanos,maxNanos\n");
+
+		for (Record record = live; record != null; record = record.next)
+			record.print(record.thread.toString(), csv);
+
+		finished.print("(" + numFinished + " finished)", csv);
+		all.print("(all)", csv);
+
+		System.out.println();
+		System.out.print(csv);
+	}
+
+	private static String pad(String s, int width) {
+		StringBuffer buf = new StringBuffer(s);
+		while (buf.length() < width)
+			buf.append(' ');
+
+		return buf.append(' ').toString();
+	}
+
+	/**
+	 * The states a thread can be recorded in. A thread that has not yet been
+	 * forked, or has finished, is in none of them.
+	 */
+	static final int none = -1, ready = 0, running = 1, blocked = 2;
+
+	private static final String[] stateNames = { "ready", "running",
+			"blocked" };
+
+	/** The records of the live threads, most recently created first. */
+	private Record live = null;
+
+	/** The totals for all threads that have finished. */
+	private Record finished = new Record(null);
+
+	private int numFinished = 0;
+
+	/**
+	 * The intervals recorded for one thread.
+	 */
+	static class Record {
+		Record(KThread thread) {
+			this.thread = thread;
+
+			for (int i = 0; i < stateNames.length; i++) {
+				ticks[i] = new Histogram();
+				nanos[i] = new Histogram();
+			}
+		}
+
+		/**
+		 * End the current interval, if any, and start one in the specified
+		 * state.
+		 *
+		 * @param newState the state the thread is entering.
+		 */
+		void enter(int newState) {
+			long nowTicks = Machine.timer().getTime();
+			long nowNanos = System.nanoTime();
+
+			if (state != none) {
+				ticks[state].add(nowTicks - sinceTicks);
+				nanos[state].add(nowNanos - sinceNanos);
+			}
+
+			state = newState;
+			sinceTicks = nowTicks;
+			sinceNanos = nowNanos;
+		}
+
+		private void addAll(Record record) {
+			for (int i = 0; i < stateNames.length; i++) {
+				ticks[i].addAll(record.ticks[i]);
+				nanos[i].addAll(record.nanos[i]);
+			}
+		}
+
+		private void print(String name, StringBuffer csv) {
+			for (int i = 0; i < stateNames.length; i++) {
+				Histogram t = ticks[i], n = nanos[i];
+				if (t.count == 0)
+					continue;
+
+				System.out.println(pad(name, 24) + pad(stateNames[i], 9)
+						+ pad("" + t.count, 8)
+						+ pad(t.total + "; " + n.total / 1000, 24)
+						+ pad(t.percentile(50) + "; " + n.percentile(50)
+								/ 1000, 16)
+						+ pad(t.percentile(90) + "; " + n.percentile(90)
+								/ 1000, 16)
+						+ pad(t.percentile(99) + "; " + n.percentile(99)
+								/ 1000, 16)
+						+ t.max + "; " + n.max / 1000);
+
+				csv.append(name.replace(',', ' ') + "," + stateNames[i] + ","
+						+ t.count + "," + t.total + "," + t.percentile(50) + ","
+						+ t.percentile(90) + "," + t.percentile(99) + ","
+						+ t.max + "," + n.total + ","
+						+ n.percentile(50) + "," + n.percentile(90) + ","
+						+ n.percentile(99) + "," + n.max + "\n");
+			}
+		}
+
+		private KThread thread;
+
+		private Record prev = null, next = null;
+
+		private int state = none;
+
+		private long sinceTicks, sinceNanos;
+
+		private Histogram[] ticks = new Histogram[stateNames.length];
+
+		private Histogram[] nanos = new Histogram[stateNames.length];
+	}
+
+	/**
+	 * A histogram of non-negative values, with four buckets for each power
+	 * of two, so that a percentile is accurate to within 25%.
+	 */
+	static class Histogram {
+		void add(long value) {
+			if (value < 0)
+				value = 0;
+
+			buckets[bucket(value)]++;
+			count++;
+			total += value;
+			if (value > max)
+				max = value;
+		}
+
+		void addAll(Histogram histogram) {
+			for (int i = 0; i < numBuckets; i++)
+				buckets[i] += histogram.buckets[i];
+
+			count += histogram.count;
+			total += histogram.total;
+			if (histogram.max > max)
+				max = histogram.max;
+		}
+
+		/**
+		 * Return an upper bound on the specified percentile of the values
+		 * added.
+		 *
+		 * @param percent the percentile, from 0 to 100.
+		 * @return the largest value in the bucket holding the percentile.
+		 */
+		long percentile(int percent) {
+			long rank = (count * percent + 99) / 100;
+
+			long seen = 0;
+			for (int i = 0; i < numBuckets; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0)
+					return Math.min(lowest(i + 1) - 1, max);
+			}
+
+			return max;
+		}
+
+		private static int bucket(long value) {
+			if (value < 4)
+				return (int) value;
+
+			int log = 63 - Long.numberOfLeadingZeros(value);
+			return (log - 1) * 4 + (int) ((value >> (log - 2)) & 3);
+		}
+
+		private static long lowest(int bucket) {
+			if (bucket < 4)
+				return bucket;
+
+			int log = bucket / 4 + 1;
+			if (log > 62)
+				return Long.MAX_VALUE;
+
+			return (long) (4 + bucket % 4) << (log - 2);
+		}
+
+		private static final int numBuckets = 252;
+
+		private long[] buckets = new long[numBuckets];
+
+		long count = 0;
+
+		long total = 0;
+
+		long max = 0;
+	}
+}
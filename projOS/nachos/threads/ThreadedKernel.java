@@ -31,6 +31,10 @@ public class ThreadedKernel extends Kernel {
 		else
 			fileSystem = null;
 
+		// record scheduling behaviour, if requested
+		if (Config.getBoolean("ThreadedKernel.schedulerStats", false))
+			schedulerStats = new SchedulerStats();
+
 		// start threading
 		new KThread(null);
 
@@ -49,6 +53,7 @@ public class ThreadedKernel extends Kernel {
 	 */
 	public void selfTest() {
 		KThread.selfTest();
+		MLFQScheduler.selfTest();
 		//Alarm.selfTest(); 
 		//Semaphore.selfTest(); 
 		//Condition2.selfTest();
@@ -71,6 +76,13 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (schedulerStats != null)
+			schedulerStats.print();
+
+		// write back anything still cached
+		if (fileSystem instanceof CachedFileSystem)
+			((CachedFileSystem) fileSystem).flush();
+
 		Machine.halt();
 	}
 
@@ -83,6 +95,12 @@ public class ThreadedKernel extends Kernel {
 	/** Globally accessible reference to the file system. */
 	public static FileSystem fileSystem = null;
 
+	/**
+	 * Globally accessible reference to the scheduler stats, or <tt>null</tt>
+	 * if they are not being recorded.
+	 */
+	public static SchedulerStats schedulerStats = null;
+
 	// dummy variables to make javac smarter
 	private static RoundRobinScheduler dummy1 = null;
 
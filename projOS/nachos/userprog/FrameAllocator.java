@@ -0,0 +1,142 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Keeps track of the free physical pages. The free pages are kept in a
+ * circular queue of page numbers, so pages are handed out in the order they
+ * were freed, and a bitmap records which pages are free, to catch a page
+ * being freed twice. Neither needs any allocation after construction, and a
+ * process's pages can be reserved or released in a single call.
+ *
+ * <p>
+ * The allocator does no locking of its own; callers hold
+ * <tt>UserKernel.lockFreePhyPages</tt>.
+ */
+public final class FrameAllocator {
+	/**
+	 * Allocate a new frame allocator, with physical pages <tt>0</tt> to
+	 * <tt>numPages-1</tt> all free.
+	 *
+	 * @param numPages the number of physical pages.
+	 */
+	public FrameAllocator(int numPages) {
+		queue = new int[numPages];
+		free = new long[(numPages + 63) / 64];
+
+		for (int i = 0; i < numPages; i++)
+			free(i);
+	}
+
+	/**
+	 * Return the number of free physical pages.
+	 *
+	 * @return the number of free physical pages.
+	 */
+	public int numFree() {
+		return numFree;
+	}
+
+	/**
+	 * Return whether there are no free physical pages.
+	 *
+	 * @return <tt>true</tt> if every physical page is in use.
+	 */
+	public boolean isEmpty() {
+		return numFree == 0;
+	}
+
+	/**
+	 * Allocate one physical page.
+	 *
+	 * @return the allocated page, or <tt>-1</tt> if there are none free.
+	 */
+	public int allocate() {
+		if (numFree == 0)
+			return -1;
+
+		int ppn = queue[head];
+		head = (head + 1 == queue.length) ? 0 : head + 1;
+		numFree--;
+
+		mark(ppn, false);
+		return ppn;
+	}
+
+	/**
+	 * Allocate enough physical pages to fill <i>ppns</i>, or none at all if
+	 * there aren't that many free.
+	 *
+	 * @param ppns the array to hold the allocated pages.
+	 * @return <tt>true</tt> if the pages were allocated.
+	 */
+	public boolean allocate(int[] ppns) {
+		int n = ppns.length;
+		if (n > numFree)
+			return false;
+
+		int first = Math.min(n, queue.length - head);
+		System.arraycopy(queue, head, ppns, 0, first);
+		System.arraycopy(queue, 0, ppns, first, n - first);
+
+		head = (n - first > 0) ? n - first : head + first;
+		if (head == queue.length)
+			head = 0;
+		numFree -= n;
+
+		for (int i = 0; i < n; i++)
+			mark(ppns[i], false);
+
+		return true;
+	}
+
+	/**
+	 * Free one physical page.
+	 *
+	 * @param ppn the page to free.
+	 */
+	public void free(int ppn) {
+		mark(ppn, true);
+
+		int tail = head + numFree;
+		if (tail >= queue.length)
+			tail -= queue.length;
+
+		queue[tail] = ppn;
+		numFree++;
+	}
+
+	/**
+	 * Free the first <i>count</i> physical pages in <i>ppns</i>.
+	 *
+	 * @param ppns the pages to free.
+	 * @param count the number of pages to free.
+	 */
+	public void free(int[] ppns, int count) {
+		for (int i = 0; i < count; i++)
+			free(ppns[i]);
+	}
+
+	private void mark(int ppn, boolean isFree) {
+		Lib.assertTrue(ppn >= 0 && ppn < queue.length);
+
+		long bit = 1L << (ppn & 63);
+		Lib.assertTrue(((free[ppn >> 6] & bit) != 0) != isFree);
+
+		if (isFree)
+			free[ppn >> 6] |= bit;
+		else
+			free[ppn >> 6] &= ~bit;
+	}
+
+	/** The free pages, in the order they will be allocated. */
+	private int[] queue;
+
+	/** The index in <tt>queue</tt> of the next page to allocate. */
+	private int head = 0;
+
+	private int numFree = 0;
+
+	/** One bit per physical page, set if the page is free. */
+	private long[] free;
+}
@@ -1,7 +1,6 @@
 package nachos.userprog;
 
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
 
 import nachos.machine.*;
@@ -19,7 +18,7 @@ public class UserKernel extends ThreadedKernel {
 		super();
 	}
 	
-	public static LinkedList<Integer> phyPages;
+	public static FrameAllocator freePhyPages;
 	public static Lock lockFreePhyPages;
 	//public static Lock lockChild;
 	public static Lock lockPID;
@@ -44,12 +43,8 @@ public class UserKernel extends ThreadedKernel {
 		//lockChild = new Lock();
 		lockFreePhyPages = new Lock();
 		lockPID = new Lock();
-		phyPages = new LinkedList<Integer>();
+		freePhyPages = new FrameAllocator(Machine.processor().getNumPhysPages());
 		map = new HashMap<Integer, UserProcess>();
-		
-		for (int i = 0; i < Machine.processor().getNumPhysPages(); i++) {
-			phyPages.add(i);
-		}
 	}
 
 	/**
@@ -27,7 +27,6 @@ public class UserProcess {
 	 * Allocate a new process.
 	 */
 	
-	private OpenFile[] openFiles;
 	public int processID = 0;
 	public UserProcess() {
 		
@@ -42,16 +41,19 @@ public class UserProcess {
 		
 		//childStatus = new LinkedList<Integer>();
 		
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		//System.out.println(numPhysPages);
-		pageTable = new TranslationEntry[numPhysPages];
-		for (int i = 0; i < numPhysPages; i++)
-			pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
-		
-		/* Initialize openFiles LinkedList to hold file handlers. */ 
-		openFiles = new OpenFile[16];
-		openFiles[0] = UserKernel.console.openForReading();
-		openFiles[1] = UserKernel.console.openForWriting();
+		/* Initialize the descriptor table, with stdin and stdout. */
+		maxOpenFiles = Config.getInteger("UserProcess.maxOpenFiles", 16);
+		Lib.assertTrue(maxOpenFiles >= 2);
+
+		// the console's descriptors don't count against the file system
+		if (ThreadedKernel.fileSystem != null)
+			maxOpenFiles = Math.min(maxOpenFiles,
+					ThreadedKernel.fileSystem.getMaxOpenFiles() + 2);
+
+		openFiles = new OpenFile[0];
+		freeFiles = new long[0];
+		allocateDescriptor(UserKernel.console.openForReading());
+		allocateDescriptor(UserKernel.console.openForWriting());
 		
 		//lock = new Lock();
 		//cv = new Condition(UserKernel.lockChild);
@@ -171,65 +173,7 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
-	
-		if (vaddr < 0 || vaddr >= memory.length)
-		{
-			return 0;
-		}
-		int paddr = 0;
-		int vpn = Processor.pageFromAddress(vaddr);
-		int initialOffset = Processor.offsetFromAddress(vaddr);
-		
-		if(vpn > pageTable.length) {
-			return 0;
-		}
-		
-		TranslationEntry te = pageTable[vpn];
-		
-		if(te.valid == false) {
-			return 0;
-		}
-		
-		paddr = te.ppn * pageSize + initialOffset;
-		
-		te.used = true;
-		int totalRead = 0;
-		
-		for(int i = 0; i < length/pageSize; i++) { 
-			
-			int amount = pageSize - initialOffset;
-			System.arraycopy(memory, paddr, data, offset, amount);
-			offset += amount;
-			totalRead += amount;
-			
-			te.used = false;
-			vpn = vpn + 1;
-			
-			if(vpn > pageTable.length) {
-				return totalRead;
-			}
-			
-			te = pageTable[vpn];
-			
-			if(te.valid == false) {
-				return totalRead;
-			}
-			
-			initialOffset = 0;
-			paddr = te.ppn * pageSize;
-			te.used = true;
-			
-		}
-		
-		if(te.valid == true) {
-			int amount = length - totalRead;
-			System.arraycopy(memory, paddr, data, offset, amount);
-			totalRead += amount;
-			te.used = false;
-		}
-		
-		return totalRead;
+		return transferVirtualMemory(vaddr, data, offset, length, false);
 	}
 
 	/**
@@ -262,65 +206,277 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
+		return transferVirtualMemory(vaddr, data, offset, length, true);
+	}
 
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
-		
-		int paddr = 0;
-		int vpn = Processor.pageFromAddress(vaddr);
-		int initialOffset = Processor.offsetFromAddress(vaddr);
-		
-		if(vpn > pageTable.length) {
-			return 0;
-		}
-		
-		TranslationEntry te = pageTable[vpn];
-		
-		if(te.valid == false || te.readOnly == true) {
+	/**
+	 * Transfer data between this process's virtual memory and the specified
+	 * array. The transfer stops at the first page that can't be accessed.
+	 * 
+	 * @param vaddr the first byte of virtual memory to transfer.
+	 * @param data the array to transfer to or from.
+	 * @param offset the first byte to transfer in the array.
+	 * @param length the number of bytes to transfer.
+	 * @param writing <tt>true</tt> to copy from the array into virtual memory.
+	 * @return the number of bytes successfully transferred.
+	 */
+	protected int transferVirtualMemory(int vaddr, byte[] data, int offset,
+			int length, boolean writing) {
+		return transfer(vaddr, length, writing, data, offset, null);
+	}
+
+	/**
+	 * Transfer data directly between an open file and this process's virtual
+	 * memory, handing the file the parts of main memory that back the user's
+	 * buffer rather than copying them through a kernel buffer. The transfer
+	 * stops at the first page that can't be accessed, or when the file
+	 * transfers fewer bytes than asked.
+	 * 
+	 * @param file the file to read from or write to.
+	 * @param vaddr the first byte of virtual memory to transfer.
+	 * @param length the number of bytes to transfer.
+	 * @param reading <tt>true</tt> to read from the file into virtual memory.
+	 * @return the number of bytes successfully transferred, or -1 if the file
+	 * failed before any were.
+	 */
+	protected int transferFile(OpenFile file, int vaddr, int length,
+			boolean reading) {
+		return transfer(vaddr, length, reading, null, 0, file);
+	}
+
+	/**
+	 * Transfer data directly between an open file and several buffers in this
+	 * process's virtual memory, in turn. The parts of main memory backing all
+	 * the buffers are gathered and handed to the file in a single vectored
+	 * request, or one request per <tt>maxTransferPages</tt> pages for larger
+	 * transfers. The transfer stops at the first page that can't be
+	 * accessed, or when the file transfers fewer bytes than asked.
+	 * 
+	 * @param file the file to read from or write to.
+	 * @param vaddrs the first byte of virtual memory of each buffer.
+	 * @param lengths the number of bytes to transfer for each buffer.
+	 * @param count the number of buffers.
+	 * @param reading <tt>true</tt> to read from the file into virtual memory.
+	 * @return the number of bytes successfully transferred, or -1 if the file
+	 * failed before any were.
+	 */
+	protected int transferFile(OpenFile file, int[] vaddrs, int[] lengths,
+			int count, boolean reading) {
+		if (pageTable == null)
 			return 0;
+
+		if (transferPages == null)
+			transferPages = new TranslationEntry[maxTransferPages];
+		if (sliceOffsets == null) {
+			sliceOffsets = new int[maxTransferPages];
+			sliceLengths = new int[maxTransferPages];
 		}
-		
-		paddr = te.ppn * pageSize + initialOffset;
-		
-		te.used = true;
-		int totalWritten=0;
-		
-		for(int i=0; i < length/pageSize; i++) {
-			
-			int amount = pageSize - initialOffset;
-			System.arraycopy(data, offset, memory, paddr, amount);
-			offset += amount;
-			totalWritten += amount;
-			
-			te.used = false;
-			vpn = vpn + 1;
-			
-			if(vpn > pageTable.length) {
-				return totalWritten;
+
+		int total = 0, numPinned = 0, numSlices = 0, batched = 0;
+		boolean stopped = false;
+
+		for (int s = 0; s < count && !stopped; s++) {
+			if (vaddrs[s] < 0) {
+				stopped = true;
+				break;
 			}
-			
-			te = pageTable[vpn];
-			
-			if(te.valid == false || te.readOnly == true) {
-				return totalWritten;
+
+			int vpn = Processor.pageFromAddress(vaddrs[s]);
+			int pageOffset = Processor.offsetFromAddress(vaddrs[s]);
+
+			for (int left = lengths[s]; left > 0;) {
+				if (numPinned == maxTransferPages) {
+					int amount = transferSlices(file, reading, numPinned,
+							numSlices);
+					if (amount < 0)
+						return (total > 0) ? total : -1;
+
+					total += amount;
+					if (amount < batched)
+						return total;
+
+					numPinned = numSlices = batched = 0;
+				}
+
+				int wanted = (int) Math.min(((long) pageOffset + left
+						+ pageSize - 1) / pageSize, maxTransferPages - numPinned);
+				if (vpn + wanted > pageTable.length)
+					wanted = pageTable.length - vpn;
+
+				int got = (wanted > 0) ? pinPages(vpn, wanted, reading,
+						transferPages, numPinned) : 0;
+
+				for (int i = 0; i < got; i++) {
+					int paddr = transferPages[numPinned + i].ppn * pageSize
+							+ pageOffset;
+					int amount = Math.min(pageSize - pageOffset, left);
+
+					// extend the last slice if this one follows it in memory
+					if (numSlices > 0
+							&& sliceOffsets[numSlices - 1]
+									+ sliceLengths[numSlices - 1] == paddr) {
+						sliceLengths[numSlices - 1] += amount;
+					}
+					else {
+						sliceOffsets[numSlices] = paddr;
+						sliceLengths[numSlices] = amount;
+						numSlices++;
+					}
+
+					batched += amount;
+					left -= amount;
+					pageOffset = 0;
+				}
+
+				numPinned += got;
+				vpn += got;
+
+				if (got < wanted || wanted <= 0) {
+					stopped = true;
+					break;
+				}
 			}
-			
-			initialOffset = 0;
-			paddr = te.ppn * pageSize;
-			te.used = true;
-			
 		}
-			
-		if(te.valid == true && te.readOnly == false) {
-			
-			int amount = length - totalWritten;
-			System.arraycopy(data, offset, memory, paddr, amount);
-			totalWritten += amount;
-			te.used = false;
+
+		int amount = transferSlices(file, reading, numPinned, numSlices);
+		if (amount < 0)
+			return (total > 0) ? total : -1;
+
+		return total + amount;
+	}
+
+	/**
+	 * Hand the gathered slices of main memory to the file in one request,
+	 * then release the pages backing them.
+	 * 
+	 * @return the number of bytes transferred, or -1 on failure.
+	 */
+	private int transferSlices(OpenFile file, boolean reading, int numPinned,
+			int numSlices) {
+		byte[] memory = Machine.processor().getMemory();
+
+		int amount = 0;
+		if (numSlices > 0 && reading)
+			amount = file.read(memory, sliceOffsets, sliceLengths, numSlices);
+		else if (numSlices > 0)
+			amount = file.write(memory, sliceOffsets, sliceLengths, numSlices);
+
+		unpinPages(transferPages, numPinned, reading);
+		return amount;
+	}
+
+	/**
+	 * Transfer data between virtual memory and either an array or a file.
+	 * The pages the transfer touches are resolved up front, in batches of at
+	 * most <tt>maxTransferPages</tt>, by <tt>pinPages()</tt>; the data is
+	 * then moved once per run of physically contiguous pages, and the batch
+	 * is released by <tt>unpinPages()</tt>.
+	 */
+	private int transfer(int vaddr, int length, boolean writing, byte[] data,
+			int offset, OpenFile file) {
+		if (vaddr < 0 || length == 0 || pageTable == null)
+			return 0;
+
+		byte[] memory = Machine.processor().getMemory();
+
+		int vpn = Processor.pageFromAddress(vaddr);
+		int pageOffset = Processor.offsetFromAddress(vaddr);
+		long lastVPN = Math.min(((long) vaddr + length - 1) / pageSize,
+				pageTable.length - 1);
+
+		if (transferPages == null)
+			transferPages = new TranslationEntry[maxTransferPages];
+		TranslationEntry[] pages = transferPages;
+
+		int total = 0;
+		while (vpn <= lastVPN) {
+			int wanted = (int) Math.min(lastVPN - vpn + 1, maxTransferPages);
+			int numPinned = pinPages(vpn, wanted, writing, pages, 0);
+
+			for (int i = 0; i < numPinned;) {
+				// find the run of physically contiguous pages starting here
+				int first = i++;
+				while (i < numPinned && pages[i].ppn == pages[i - 1].ppn + 1)
+					i++;
+
+				int paddr = pages[first].ppn * pageSize + pageOffset;
+				int amount = Math.min((i - first) * pageSize - pageOffset,
+						length - total);
+
+				int done = amount;
+				if (file == null && writing)
+					System.arraycopy(data, offset + total, memory, paddr, amount);
+				else if (file == null)
+					System.arraycopy(memory, paddr, data, offset + total, amount);
+				else if (writing)
+					done = file.read(memory, paddr, amount);
+				else
+					done = file.write(memory, paddr, amount);
+
+				if (done < amount) {
+					unpinPages(pages, numPinned, writing);
+
+					if (done < 0)
+						return (total > 0) ? total : -1;
+
+					return total + done;
+				}
+
+				total += amount;
+				pageOffset = 0;
+			}
+
+			unpinPages(pages, numPinned, writing);
+
+			if (numPinned < wanted)
+				break;
+
+			vpn += numPinned;
 		}
-		
-		return totalWritten;
+
+		return total;
+	}
+
+	/**
+	 * Make up to <i>count</i> pages, starting at <i>vpn</i>, ready for a
+	 * transfer, and store their translation entries in <i>pages</i>, starting
+	 * at index <i>start</i>. Stops at the first page that isn't valid, or is
+	 * read-only when <i>writing</i>.
+	 * 
+	 * @param vpn the first page to resolve.
+	 * @param count the number of pages to resolve.
+	 * @param writing <tt>true</tt> if the pages will be written.
+	 * @param pages the array to store the translation entries in.
+	 * @param start the index in <i>pages</i> of the first entry.
+	 * @return the number of pages resolved.
+	 */
+	protected int pinPages(int vpn, int count, boolean writing,
+			TranslationEntry[] pages, int start) {
+		for (int i = 0; i < count; i++) {
+			TranslationEntry te = pageTable[vpn + i];
+			if (!te.valid || (writing && te.readOnly))
+				return i;
+
+			te.used = true;
+			if (writing)
+				te.dirty = true;
+
+			pages[start + i] = te;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Release the pages resolved by <tt>pinPages()</tt> once the transfer is
+	 * done.
+	 * 
+	 * @param pages the translation entries of the pages.
+	 * @param count the number of pages.
+	 * @param writing <tt>true</tt> if the pages were written.
+	 */
+	protected void unpinPages(TranslationEntry[] pages, int count,
+			boolean writing) {
 	}
 
 	/**
@@ -419,9 +575,10 @@ public class UserProcess {
 	 */
 	protected boolean loadSections() {
 		//if (numPages > Machine.processor().getNumPhysPages()) {
+		int[] phyPages = new int[numPages];
+
 		UserKernel.lockFreePhyPages.acquire();
-		//System.out.println("Free Pages :- " + UserKernel.phyPages.size());
-		if (numPages > UserKernel.phyPages.size()) {
+		if (!UserKernel.freePhyPages.allocate(phyPages)) {
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			UserKernel.lockFreePhyPages.release();
@@ -429,7 +586,9 @@ public class UserProcess {
 		}
 		
 		int pagesLoaded = 0, vpn = 0;
-		TranslationEntry te;
+
+		// the page table covers the sections, the stack and the arguments
+		pageTable = new TranslationEntry[numPages];
 		
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
@@ -440,15 +599,10 @@ public class UserProcess {
 			for (int i = 0; i < section.getLength(); i++) {
 				vpn = section.getFirstVPN() + i;
 				
-				te = pageTable[vpn];
-				
-				int phyIndex = UserKernel.phyPages.removeFirst();
-				te.ppn = phyIndex;
-				te.valid = true;
+				int phyIndex = phyPages[pagesLoaded];
+				pageTable[vpn] = new TranslationEntry(vpn, phyIndex, true,
+						section.isReadOnly(), false, false);
 				
-				if(section.isReadOnly()) {
-					te.readOnly = true;
-				}
 				section.loadPage(i, phyIndex);
 				
 				pagesLoaded++;
@@ -456,15 +610,9 @@ public class UserProcess {
 			}
 		}
 		
-		for (int i = 0; i < (numPages - pagesLoaded); i++) {
-
-			vpn = vpn + 1;
-			te = pageTable[vpn];
-			
-			int phyIndex = UserKernel.phyPages.removeFirst();
-			te.ppn = phyIndex;
-			te.valid = true;
-			
+		for (vpn = pagesLoaded; vpn < numPages; vpn++) {
+			pageTable[vpn] = new TranslationEntry(vpn, phyPages[vpn], true,
+					false, false, false);
 		}
 		UserKernel.lockFreePhyPages.release();
 		return true;
@@ -474,16 +622,23 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		
+		// nothing was loaded
+		if (pageTable == null)
+			return;
+
 		TranslationEntry te;
-		UserKernel.lockFreePhyPages.acquire();
+		int[] phyPages = new int[pageTable.length];
+		int numValid = 0;
 		for (int i = 0; i < pageTable.length; i++) {
 			te = pageTable[i];
 			if (te.valid == true) {
-				UserKernel.phyPages.add(te.ppn);
+				phyPages[numValid++] = te.ppn;
 			}
 		}
-	    UserKernel.lockFreePhyPages.release();
+
+		UserKernel.lockFreePhyPages.acquire();
+		UserKernel.freePhyPages.free(phyPages, numValid);
+		UserKernel.lockFreePhyPages.release();
 	}
 
 	/**
@@ -523,21 +678,18 @@ public class UserProcess {
 			return -1;
 		}
 		
-		for (int i=0; i<openFiles.length; i++) {
-			if (openFiles[i] == null) {
-				OpenFile executable = ThreadedKernel.fileSystem.open(name, true);
-				if (executable == null) {
-					Lib.debug(dbgProcess, "\topen failed");
-					return -1;
-				}
-				else {
-					System.out.println("File: " + name + " created successfully");
-					this.openFiles[i] = executable;
-					return i;
-				}
-			}
+		if (!canAllocateDescriptor()) {
+			return -1;
+		}
+
+		OpenFile executable = ThreadedKernel.fileSystem.open(name, true);
+		if (executable == null) {
+			Lib.debug(dbgProcess, "\topen failed");
+			return -1;
 		}
-		return -1;
+
+		System.out.println("File: " + name + " created successfully");
+		return allocateDescriptor(executable);
 	}
 		
 		/**
@@ -556,41 +708,33 @@ public class UserProcess {
 			}
 			
 			// Valid
-			for (int i=0; i < openFiles.length; i++) {
-				if (openFiles[i] == null) {
-					OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-					if (executable == null) {
-						Lib.debug(dbgProcess, "\topen failed");
-						return -1;
-					}
-					else {
-						System.out.println("File: " + name + " opened successfully");
-						this.openFiles[i] = executable;
-						return i;
-					}
-				}
+			if (!canAllocateDescriptor()) {
+				return -1;
 			}
-		return -1;
-		
+
+			OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+			if (executable == null) {
+				Lib.debug(dbgProcess, "\topen failed");
+				return -1;
+			}
+
+			System.out.println("File: " + name + " opened successfully");
+			return allocateDescriptor(executable);
 	}
 		
 		/**
 		 * Handle the close() system call.
 		 */
 		private int handleClose(int index) {
-			if (index < 0 || index > openFiles.length) {
-				return -1;
-			}
-			
-			OpenFile file = openFiles[index];
+			OpenFile file = getOpenFile(index);
 			if (file == null) {
 				return -1;
 			}
 			
-			System.out.println("Closing " + openFiles[index].getName());
+			System.out.println("Closing " + file.getName());
 			
 			file.close();
-			openFiles[index] = null;
+			freeDescriptor(index);
 			
 			return 0;
 	}
@@ -624,7 +768,7 @@ public class UserProcess {
             
 //			|| count > Machine.processor().getMemory().length 
 			
-            if (index < 0 || index > 15 || count < 0) { // > instead of >=
+            if (count < 0) {
                 return -1;
             }
             
@@ -634,65 +778,22 @@ public class UserProcess {
                 return -1;
             }
             
-            OpenFile file = openFiles[index];            
+            OpenFile file = getOpenFile(index);
             if (file == null) {
                 return -1;
             }
             
-            if (index == 0 && openFiles[index].getName().compareTo("SynchConsole") == 0) {
+            if (index == 0 && file.getName().compareTo("SynchConsole") == 0) {
 				return -1;
 			}
             
-            int total_written = 0;
-            int written_data = 0, wException = 0;
-            
-            int eFlag = 0;
-            byte[] writebuff = new byte[pageSize];
-            for (int i = 0; i < count/pageSize; i++) {
-                
-                written_data = readVirtualMemory(vaddr + total_written, writebuff);
-                wException = file.write(writebuff, 0, written_data);
-                
-                Lib.assertTrue(written_data == wException);
-                if(wException == -1) {
-                    System.out.println("write unsuccessful");
-                    return -1;
-                }
-                total_written += written_data;
-//                System.out.println(total_written);
-                if(written_data < pageSize) {
-                    eFlag = 1;
-                    break;
-                }
-            }
-            
-            if(eFlag != 1) {
-                
-                written_data = readVirtualMemory(vaddr + total_written, writebuff, 0, (count - total_written));
-                wException = file.write(writebuff, 0, written_data);
-                
-                Lib.assertTrue(written_data == wException);
-                
-                if(wException == -1) {
-                    System.out.println("write unsuccessful");
-                    return -1;
-                }
-                total_written+= written_data;    
-            }
-            
-            
+            int total_written = transferFile(file, vaddr, count, false);
+
             if(total_written != count) {   // added new , only for write, read check not required, syscall.h 
                 return -1;
             }
             
             return total_written;
-            
-            /* Page Size = 256 -- Assume 
-             * Consider cases -- requested 512 , but EOF @ 128
-             *                -- requested 520, but EOF @ 516
-                              -- requested 260, but EOF @ 256
-                              -- requested 512 , but EOF @ 260                  
-                              -- just return -1, if they don't match with count -- all passed after theses changes */
     }   
 		
 		
@@ -702,9 +803,6 @@ public class UserProcess {
 		 * */
 		
 		private int handleRead(int index, int vaddr, int count) {
-			if (index < 0   || index > 15) {
-				return -1;
-			}
 //			|| count > Machine.processor().getMemory().length    mainMemory = new byte[pageSize * numPhysPages]; thats why removed
 			if (count < 0) {
                 return -1;
@@ -715,54 +813,69 @@ public class UserProcess {
 				return -1;
 			}
             
-			OpenFile file = openFiles[index];
+			OpenFile file = getOpenFile(index);
 			
 			if (file == null) {
 				return -1;
 			}
 			
-			if (index == 1 && openFiles[index].getName().compareTo("SynchConsole") == 0) {
+			if (index == 1 && file.getName().compareTo("SynchConsole") == 0) {
 				return -1;
 			}
 
-			int total_read = 0;
-			int readData = 0, rException = 0;
-
-			byte[] readbuff = new byte[pageSize];
-            int eFlag = 0;
-            for ( int i = 0; i < count/pageSize; i++) {
-                
-                rException = file.read(readbuff, 0, pageSize);   // amount read , this should be written to VM
-                if(rException == -1) {
-                    System.out.println("Read exception!!!!");
-                    return -1;
-                }
-                readData = writeVirtualMemory(vaddr + total_read, readbuff, 0, rException); // here also
-                Lib.assertTrue(readData == rException);
-                System.out.println("read data ...");
-                total_read += readData;
-                
-                if(readData < pageSize) {
-                    eFlag = 1;
-                    break;
-                }
-                
-            }
-                        
-            if(eFlag != 1) {
-                rException = file.read(readbuff, 0, (count - total_read));
-                if(rException == -1) {
-                    System.out.println("Read exception!!!!");
-                    return -1;
-                }
-                
-                readData = writeVirtualMemory(vaddr + total_read, readbuff, 0, rException);  // rException used, lets say read 520, page size 256 but only 4 is available (EOF)
-                Lib.assertTrue(readData == rException);  
-                total_read += readData;
-            }
+			int total_read = transferFile(file, vaddr, count, true);
             
             return total_read;
 		}
+
+	/**
+	 * Handle the readv() and writev() system calls, which transfer data
+	 * between a file and the <i>iovcnt</i> buffers described by the array of
+	 * <tt>struct iovec { void *base; int len; }</tt> at <i>iov</i>. The
+	 * whole transfer is a single request to the file. Like write(), writev()
+	 * returns -1 unless every byte is written.
+	 */
+	private int handleVectoredIO(int index, int iov, int iovcnt,
+			boolean reading) {
+		if (iovcnt < 0 || iovcnt > maxIovecs)
+			return -1;
+
+		OpenFile file = getOpenFile(index);
+		if (file == null)
+			return -1;
+
+		// can't write the console's input, or read its output
+		if (index == (reading ? 1 : 0)
+				&& file.getName().compareTo("SynchConsole") == 0)
+			return -1;
+
+		byte[] iovecs = new byte[iovcnt * 8];
+		if (readVirtualMemory(iov, iovecs) != iovecs.length)
+			return -1;
+
+		int[] vaddrs = new int[iovcnt];
+		int[] lengths = new int[iovcnt];
+		long count = 0;
+		for (int i = 0; i < iovcnt; i++) {
+			vaddrs[i] = Lib.bytesToInt(iovecs, i * 8);
+			lengths[i] = Lib.bytesToInt(iovecs, i * 8 + 4);
+
+			if (vaddrs[i] < 0 || lengths[i] < 0)
+				return -1;
+
+			count += lengths[i];
+		}
+
+		if (count > Integer.MAX_VALUE)
+			return -1;
+
+		int transferred = transferFile(file, vaddrs, lengths, iovcnt, reading);
+
+		if (!reading && transferred != count)
+			return -1;
+
+		return transferred;
+	}
 		
 		/**
 		 * Handle the exec() system call.
@@ -855,13 +968,99 @@ public class UserProcess {
 			return -1;
 		}
 
-		Machine.halt();
-		
+		// let the kernel flush its caches and print its reports
+		Kernel.kernel.terminate();
 
-		Lib.assertNotReached("Machine.halt() did not halt machine!");
+		Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 		return 0;
 	}
 
+	/**
+	 * Return the file open as descriptor <i>fd</i>.
+	 *
+	 * @param fd the file descriptor.
+	 * @return the open file, or <tt>null</tt> if <i>fd</i> is not open.
+	 */
+	protected OpenFile getOpenFile(int fd) {
+		if (fd < 0 || fd >= openFiles.length)
+			return null;
+
+		return openFiles[fd];
+	}
+
+	/**
+	 * Return whether another file can be opened without exceeding
+	 * <tt>maxOpenFiles</tt>.
+	 */
+	private boolean canAllocateDescriptor() {
+		return numFreeFiles > 0 || openFiles.length < maxOpenFiles;
+	}
+
+	/**
+	 * Give <i>file</i> the lowest free descriptor. The table doubles in size,
+	 * up to <tt>maxOpenFiles</tt>, when every descriptor is in use.
+	 *
+	 * @param file the file to add.
+	 * @return the new descriptor, or <tt>-1</tt> if there are too many open
+	 * files.
+	 */
+	protected int allocateDescriptor(OpenFile file) {
+		if (numFreeFiles == 0) {
+			if (openFiles.length == maxOpenFiles)
+				return -1;
+
+			int oldLength = openFiles.length;
+			int newLength = Math.min(Math.max(2 * oldLength, 16),
+					maxOpenFiles);
+
+			OpenFile[] newFiles = new OpenFile[newLength];
+			System.arraycopy(openFiles, 0, newFiles, 0, oldLength);
+			openFiles = newFiles;
+
+			long[] newFree = new long[(newLength + 63) / 64];
+			System.arraycopy(freeFiles, 0, newFree, 0, freeFiles.length);
+			freeFiles = newFree;
+
+			for (int fd = oldLength; fd < newLength; fd++)
+				markDescriptor(fd, true);
+		}
+
+		int word = 0;
+		while (freeFiles[word] == 0)
+			word++;
+
+		int fd = word * 64 + Long.numberOfTrailingZeros(freeFiles[word]);
+		Lib.assertTrue(openFiles[fd] == null);
+
+		markDescriptor(fd, false);
+		openFiles[fd] = file;
+		return fd;
+	}
+
+	private void markDescriptor(int fd, boolean isFree) {
+		long bit = 1L << (fd & 63);
+		if (isFree) {
+			freeFiles[fd >> 6] |= bit;
+			numFreeFiles++;
+		}
+		else {
+			freeFiles[fd >> 6] &= ~bit;
+			numFreeFiles--;
+		}
+	}
+
+	/**
+	 * Release descriptor <i>fd</i>, without closing its file.
+	 *
+	 * @param fd the descriptor to release.
+	 */
+	protected void freeDescriptor(int fd) {
+		Lib.assertTrue(openFiles[fd] != null);
+
+		openFiles[fd] = null;
+		markDescriptor(fd, true);
+	}
+
 	/**
 	 * Handle the exit() system call.
 	 */
@@ -874,7 +1073,7 @@ public class UserProcess {
 		for(int i = 0; i < openFiles.length; i++) {
 			if(openFiles[i] != null) {
 				openFiles[i].close();
-				openFiles[i] = null;
+				freeDescriptor(i);
 			}
 		}
 		unloadSections();
@@ -912,7 +1111,7 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallReadv = 13, syscallWritev = 14;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -962,6 +1161,10 @@ public class UserProcess {
 			return handleExec(a0, a1, a2);
 		case syscallJoin:
 			return handleJoin(a0, a1);
+		case syscallReadv:
+			return handleVectoredIO(a0, a1, a2, true);
+		case syscallWritev:
+			return handleVectoredIO(a0, a1, a2, false);
 			
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -1000,8 +1203,21 @@ public class UserProcess {
 		}
 	}
 	
-	/** Create an array to hold open files. */
-	//private ArrayList<OpenFile> openFiles;
+	/** The open files, indexed by file descriptor. */
+	private OpenFile[] openFiles;
+
+	/** One bit per descriptor in <tt>openFiles</tt>, set if it is unused. */
+	private long[] freeFiles;
+
+	private int numFreeFiles = 0;
+
+	/**
+	 * The most files this process can have open at once, set by
+	 * <tt>UserProcess.maxOpenFiles</tt> but no more than the file system's
+	 * own limit allows. Every open file also counts against that limit,
+	 * which is shared by all processes.
+	 */
+	protected int maxOpenFiles;
 	
 	/** The program being run by this process. */
 	protected Coff coff;
@@ -1023,6 +1239,22 @@ public class UserProcess {
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
 
+	/** The most buffers a readv() or writev() can transfer. */
+	private static final int maxIovecs = 64;
+
+	/**
+	 * The most pages a memory transfer resolves at once. A subclass that
+	 * pins the pages keeps this small enough to leave other processes frames
+	 * to fault into.
+	 */
+	protected int maxTransferPages = 16;
+
+	/** The pages being transferred by <tt>transferVirtualMemory()</tt>. */
+	private TranslationEntry[] transferPages = null;
+
+	/** The parts of main memory gathered for a vectored file transfer. */
+	private int[] sliceOffsets = null, sliceLengths = null;
+
 	/** The number of pages in the program's stack. */
 	protected final int stackPages = 8;
 
@@ -14,7 +14,7 @@ public final class InvertedPageTable {
 	public InvertedPageTable() {
 		this.ppn = -1;
 		this.vpn = -1;
-		this.pinned = false;
+		this.pinCount = 0;
 		this.process = null;
 		this.te = null;
 	}
@@ -30,7 +30,7 @@ public final class InvertedPageTable {
 	public InvertedPageTable(int vpn, int ppn, boolean pinned, VMProcess process) {
 		this.vpn = vpn;
 		this.ppn = ppn;
-		this.pinned = pinned;
+		this.pinCount = pinned ? 1 : 0;
 		this.process = process;
 	}
 
@@ -43,7 +43,7 @@ public final class InvertedPageTable {
 	public InvertedPageTable(TranslationEntry entry) {
 		this.vpn = entry.vpn;
 		this.ppn = entry.ppn;
-		this.pinned = false;
+		this.pinCount = 0;
 		this.process = null;
 		this.te = entry;
 	}
@@ -61,10 +61,21 @@ public final class InvertedPageTable {
 	
 	
 	/**
-	 * Pinned flag.
+	 * The number of transfers using the page. A page is pinned, and can't be
+	 * evicted, while this is nonzero.
 	 */
-	boolean pinned;
+	int pinCount;
+
+	/**
+	 * Set if the page was brought in by fault-around and the clock hand
+	 * hasn't passed it since.
+	 */
+	boolean prefetched;
 	
+	/**
+	 * The translation entry of the page held, or <tt>null</tt> if the
+	 * physical page is free.
+	 */
 	public TranslationEntry te;
 	
 	/**
@@ -0,0 +1,239 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Keeps track of the slots in the swap file, each of which holds one page. A
+ * bitmap records which slots are in use.
+ *
+ * <p>
+ * A page is placed next to the slot of the page before or after it in the
+ * same process whenever possible, so that a process's neighbouring pages
+ * end up in consecutive slots and can be read or written in a single
+ * request. A page with no swapped-out neighbour goes at the start of the
+ * first free run of <tt>clusterPages</tt> slots, leaving room for its
+ * neighbours to follow. Otherwise the lowest free slot is used, and the file
+ * only grows when every slot is taken.
+ *
+ * <p>
+ * The swap file is only as long as its last slot in use. Freeing the slots
+ * at the tail truncates the file to match, so that the space is given back
+ * and those slots are the next to be reused by the growth policy above.
+ *
+ * <p>
+ * The manager does no locking of its own; callers hold
+ * <tt>UserKernel.lockFreePhyPages</tt>.
+ */
+public final class SwapManager {
+	/**
+	 * Allocate a new swap manager, with every slot of <i>file</i> free.
+	 *
+	 * @param file the swap file.
+	 */
+	public SwapManager(OpenFile file) {
+		this.file = file;
+	}
+
+	/**
+	 * Allocate a slot, preferring <i>near</i> if it is free.
+	 *
+	 * @param near the slot wanted, or <tt>-1</tt> for none in particular.
+	 * @return the allocated slot.
+	 */
+	public int allocate(int near) {
+		int slot;
+		if (near >= 0 && !isUsed(near))
+			slot = near;
+		else
+			slot = findRun(clusterPages);
+
+		if (slot < 0)
+			slot = findRun(1);
+
+		if (slot < 0)
+			slot = numSlots;
+
+		mark(slot, true);
+		return slot;
+	}
+
+	/**
+	 * Allocate <i>count</i> consecutive slots, using the first free run that
+	 * is long enough, or the end of the file if there is none.
+	 *
+	 * @param count the number of slots.
+	 * @return the first of the allocated slots.
+	 */
+	public int allocateRun(int count) {
+		int slot = findRun(count);
+		if (slot < 0) {
+			// extend the free run at the tail, if any
+			slot = numSlots;
+			while (slot > 0 && !isUsed(slot - 1))
+				slot--;
+		}
+
+		for (int i = 0; i < count; i++)
+			mark(slot + i, true);
+
+		return slot;
+	}
+
+	/**
+	 * Free a slot.
+	 *
+	 * @param slot the slot to free.
+	 */
+	public void free(int slot) {
+		mark(slot, false);
+
+		int oldSlots = numSlots;
+		while (numSlots > 0 && !isUsed(numSlots - 1))
+			numSlots--;
+
+		if (numSlots < oldSlots)
+			file.truncate(numSlots * pageSize);
+	}
+
+	/**
+	 * Return the number of slots the swap file needs, one past the last slot
+	 * in use.
+	 *
+	 * @return the length of the swap file, in pages.
+	 */
+	public int getNumSlots() {
+		return numSlots;
+	}
+
+	/**
+	 * Read one page from the swap file into physical memory.
+	 *
+	 * @param slot the slot to read.
+	 * @param ppn the physical page to read it into.
+	 * @return <tt>true</tt> if the whole page was read.
+	 */
+	public boolean read(int slot, int ppn) {
+		return file.read(slot * pageSize, Machine.processor().getMemory(),
+				ppn * pageSize, pageSize) == pageSize;
+	}
+
+	/**
+	 * Write one page of physical memory to the swap file.
+	 *
+	 * @param slot the slot to write.
+	 * @param ppn the physical page to write.
+	 * @return <tt>true</tt> if the whole page was written.
+	 */
+	public boolean write(int slot, int ppn) {
+		return file.write(slot * pageSize, Machine.processor().getMemory(),
+				ppn * pageSize, pageSize) == pageSize;
+	}
+
+	/**
+	 * Read consecutive slots into physical memory, as a single request.
+	 *
+	 * @param slot the first slot to read.
+	 * @param ppns the physical page to read each slot into.
+	 * @param count the number of slots.
+	 * @return <tt>true</tt> if every page was read.
+	 */
+	public boolean read(int slot, int[] ppns, int count) {
+		int[] offsets = new int[count];
+		int[] lengths = new int[count];
+		pageRuns(ppns, count, offsets, lengths);
+
+		return file.read(slot * pageSize, Machine.processor().getMemory(),
+				offsets, lengths, count) == count * pageSize;
+	}
+
+	/**
+	 * Write physical pages to consecutive slots, as a single request.
+	 *
+	 * @param slot the first slot to write.
+	 * @param ppns the physical page to write to each slot.
+	 * @param count the number of slots.
+	 * @return <tt>true</tt> if every page was written.
+	 */
+	public boolean write(int slot, int[] ppns, int count) {
+		int[] offsets = new int[count];
+		int[] lengths = new int[count];
+		pageRuns(ppns, count, offsets, lengths);
+
+		return file.write(slot * pageSize, Machine.processor().getMemory(),
+				offsets, lengths, count) == count * pageSize;
+	}
+
+	private static void pageRuns(int[] ppns, int count, int[] offsets,
+			int[] lengths) {
+		for (int i = 0; i < count; i++) {
+			offsets[i] = ppns[i] * pageSize;
+			lengths[i] = pageSize;
+		}
+	}
+
+	/**
+	 * Return the first slot of the first run of <i>count</i> free slots
+	 * before <tt>numSlots</tt>, or <tt>-1</tt> if there is none.
+	 */
+	private int findRun(int count) {
+		int run = 0;
+		for (int slot = 0; slot < numSlots; slot++) {
+			// skip whole words in use
+			if (run == 0 && (slot & 63) == 0 && slot + 64 <= numSlots
+					&& used[slot >> 6] == -1L) {
+				slot += 63;
+				continue;
+			}
+
+			if (isUsed(slot)) {
+				run = 0;
+			}
+			else if (++run == count) {
+				return slot - count + 1;
+			}
+		}
+
+		return -1;
+	}
+
+	private boolean isUsed(int slot) {
+		if (slot >= numSlots)
+			return false;
+
+		return (used[slot >> 6] & (1L << (slot & 63))) != 0;
+	}
+
+	private void mark(int slot, boolean inUse) {
+		Lib.assertTrue(slot >= 0 && isUsed(slot) != inUse);
+
+		if (slot >> 6 >= used.length) {
+			long[] newUsed = new long[Math.max(2 * used.length,
+					(slot >> 6) + 1)];
+			System.arraycopy(used, 0, newUsed, 0, used.length);
+			used = newUsed;
+		}
+
+		long bit = 1L << (slot & 63);
+		if (inUse) {
+			used[slot >> 6] |= bit;
+			if (slot >= numSlots)
+				numSlots = slot + 1;
+		}
+		else {
+			used[slot >> 6] &= ~bit;
+		}
+	}
+
+	/** The number of slots given to a page with no neighbours in swap. */
+	private static final int clusterPages = 8;
+
+	private OpenFile file;
+
+	/** One bit per slot, set if the slot is in use. */
+	private long[] used = new long[1];
+
+	/** One past the last slot in use. */
+	private int numSlots = 0;
+
+	private static final int pageSize = Processor.pageSize;
+}
@@ -1,7 +1,5 @@
 package nachos.vm;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -9,6 +7,18 @@ import nachos.vm.*;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * When the number of free physical pages falls below
+ * <tt>VMKernel.cleanerLowWater</tt>, a background thread sweeps the
+ * inverted page table from the clock hand until there are
+ * <tt>VMKernel.cleanerHighWater</tt> free pages. It frees pages that haven't
+ * been used since the hand last passed, writing dirty ones to swap first
+ * without holding <tt>UserKernel.lockFreePhyPages</tt>, so that a page fault
+ * usually finds a free page and only has to read. Dirty pages are pinned
+ * while they are written, but never the last frame that isn't pinned. The
+ * cleaner is off unless the low-water mark is set, leaving all eviction to
+ * the faulting thread.
  */
 public class VMKernel extends UserKernel {
 	/**
@@ -23,17 +33,31 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
-		this.swapList = new LinkedList<Integer>();
-		this.totalSPNCount = 0;
 		this.swapPage = 0;
 		
 		this.allPinned = 0;
 //		this.allPinned = 0;
 		
 		this.swapFile = ThreadedKernel.fileSystem.open("jsr.txt", true);
+		swap = new SwapManager(swapFile);
+
+		pageOutCluster = Config.getInteger("VMKernel.pageOutCluster", 1);
+		Lib.assertTrue(pageOutCluster >= 1);
+
+		faultAround = Config.getInteger("VMKernel.faultAround", 1);
+		Lib.assertTrue(faultAround >= 1);
+
+		cleanerLowWater = Config.getInteger("VMKernel.cleanerLowWater", 0);
+		Lib.assertTrue(cleanerLowWater >= 0);
+		cleanerHighWater = Config.getInteger("VMKernel.cleanerHighWater",
+				2 * cleanerLowWater);
+		Lib.assertTrue(cleanerHighWater >= cleanerLowWater);
 		
 		clockLock = new Lock();
 		allPagesPinnedCV = new Condition(clockLock);
+
+		cleanerNeeded = new Condition(UserKernel.lockFreePhyPages);
+		cleaningDone = new Condition(UserKernel.lockFreePhyPages);
 		
 		ipt = new InvertedPageTable[Machine.processor().getNumPhysPages()];
 		for (int i=0; i<Machine.processor().getNumPhysPages(); i++) {
@@ -59,22 +83,166 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
-		// CLOSE AND DELETE SWAPFILE
-		this.swapFile.close();
+		// DELETE AND CLOSE SWAPFILE; removing it first means a cache can
+		// discard its blocks rather than write them back
 		ThreadedKernel.fileSystem.remove("jsr.txt");
+		this.swapFile.close();
 		super.terminate();
 	}
 
+	/**
+	 * Start the page cleaner if there are fewer than
+	 * <tt>cleanerLowWater</tt> free physical pages. The caller holds
+	 * <tt>UserKernel.lockFreePhyPages</tt>.
+	 *
+	 * @return <tt>true</tt> if the cleaner was woken.
+	 */
+	static boolean wakeCleaner() {
+		if (UserKernel.freePhyPages.numFree() >= cleanerLowWater)
+			return false;
+
+		if (cleaner == null) {
+			cleaner = new KThread(new Runnable() {
+				public void run() {
+					runCleaner();
+				}
+			}).setName("page cleaner");
+			cleaner.fork();
+		}
+
+		cleanerNeeded.wake();
+		return true;
+	}
+
+	private static void runCleaner() {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		int[] dirty = new int[numPhysPages];
+
+		UserKernel.lockFreePhyPages.acquire();
+		while (true) {
+			while (UserKernel.freePhyPages.numFree() >= cleanerLowWater)
+				cleanerNeeded.sleep();
+
+			UserKernel.lockFreePhyPages.release();
+
+			// pinning needs clockLock, which comes first
+			clockLock.acquire();
+			UserKernel.lockFreePhyPages.acquire();
+
+			int numFreed = 0, numDirty = 0;
+			for (int i = 0; i < numPhysPages && UserKernel.freePhyPages
+					.numFree() + numDirty < cleanerHighWater; i++) {
+				InvertedPageTable entry = ipt[swapPage];
+				swapPage = (swapPage + 1) % numPhysPages;
+
+				if (entry.pinCount > 0 || entry.te == null || !entry.te.valid)
+					continue;
+
+				VMProcess.clockPassed(entry);
+				if (entry.te.used) {
+					entry.te.used = false;
+				}
+				else if (!entry.te.dirty) {
+					entry.te.valid = false;
+					entry.te = null;
+					UserKernel.freePhyPages.free(entry.ppn);
+					numFreed++;
+				}
+				else if (allPinned + 1 < numPhysPages) {
+					// pinned while it is written, but the clock always keeps
+					// a frame it can evict; a write from now on makes the
+					// page dirty again
+					entry.te.dirty = false;
+					entry.pinCount = 1;
+					allPinned++;
+					entry.process.cleaning++;
+					dirty[numDirty++] = entry.ppn;
+				}
+			}
+
+			int slot = -1;
+			if (numDirty > 0)
+				slot = VMProcess.assignSwapRun(dirty, numDirty);
+
+			UserKernel.lockFreePhyPages.release();
+			clockLock.release();
+
+			if (numDirty > 0) {
+				Lib.debug(dbgVM, "cleaning " + numDirty + " pages");
+				swap.write(slot, dirty, numDirty);
+			}
+
+			clockLock.acquire();
+			UserKernel.lockFreePhyPages.acquire();
+
+			for (int i = 0; i < numDirty; i++) {
+				InvertedPageTable entry = ipt[dirty[i]];
+				if (--entry.pinCount == 0)
+					allPinned--;
+				entry.process.cleaning--;
+
+				if (entry.pinCount == 0 && !entry.te.used
+						&& !entry.te.dirty) {
+					entry.te.valid = false;
+					entry.te = null;
+					UserKernel.freePhyPages.free(entry.ppn);
+					numFreed++;
+				}
+			}
+
+			if (numDirty > 0) {
+				allPagesPinnedCV.wakeAll();
+				cleaningDone.wakeAll();
+			}
+
+			clockLock.release();
+
+			// wait for the next fault rather than spin if nothing was cold
+			if (numFreed == 0 && numDirty == 0)
+				cleanerNeeded.sleep();
+		}
+	}
+
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
 	private static final char dbgVM = 'v';
 
-	public static LinkedList<Integer> swapList;
-	
 	public static OpenFile swapFile;
-	
-	public static int totalSPNCount;
+
+	/** The slots of <tt>swapFile</tt>. */
+	public static SwapManager swap;
+
+	/**
+	 * The most pages to evict at once when there are no free pages, or 1 to
+	 * evict one page at a time.
+	 */
+	public static int pageOutCluster;
+
+	/**
+	 * The most pages to map on one page fault, counting the faulting page, or
+	 * 1 to map only the faulting page. The others follow it in the same COFF
+	 * section or in the following swap slots. Each process starts with this
+	 * many and adapts according to whether they are used.
+	 */
+	public static int faultAround;
+
+	/**
+	 * The number of free physical pages the cleaner tries to keep, or 0 if
+	 * there is no cleaner.
+	 */
+	public static int cleanerLowWater;
+
+	/** The number of free physical pages the cleaner stops at. */
+	public static int cleanerHighWater;
+
+	/** Signalled when there are too few free physical pages. */
+	private static Condition cleanerNeeded;
+
+	/** Signalled when the cleaner has finished writing out some pages. */
+	static Condition cleaningDone;
+
+	private static KThread cleaner = null;
 	
 	public static Lock clockLock;
 	
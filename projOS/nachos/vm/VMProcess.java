@@ -16,6 +16,10 @@ public class VMProcess extends UserProcess {
 	 */
 	public VMProcess() {
 		super();
+
+		// a transfer pins its pages, so never let one pin every frame
+		maxTransferPages = Math.max(1, Math.min(maxTransferPages,
+				Machine.processor().getNumPhysPages() / 4));
 	}
 
 	/**
@@ -46,6 +50,18 @@ public class VMProcess extends UserProcess {
 		for (int i = 0; i < numPages; i++) {
 			pageTable[i] = new TranslationEntry(i, i, false, false, false, false);
 		}
+
+		// the sections start at page 0 and are contiguous; the stack and
+		// arguments follow them
+		pageSections = new CoffSection[numPages];
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			Arrays.fill(pageSections, section.getFirstVPN(),
+					section.getFirstVPN() + section.getLength(), section);
+		}
+
+		swapSlots = new int[numPages];
+		Arrays.fill(swapSlots, -1);
 		return true;
 	}
 
@@ -53,12 +69,224 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		// nothing was loaded
+		if (pageTable == null)
+			return;
+
+		UserKernel.lockFreePhyPages.acquire();
+
+		// the cleaner may be writing out some of our pages
+		while (cleaning > 0)
+			VMKernel.cleaningDone.sleep();
+
+		// invalidate the pages, so the cleaner leaves their frames alone
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry te = pageTable[vpn];
+			if (te.valid) {
+				te.valid = false;
+				VMKernel.ipt[te.ppn].te = null;
+				UserKernel.freePhyPages.free(te.ppn);
+			}
+
+			if (swapSlots[vpn] >= 0) {
+				VMKernel.swap.free(swapSlots[vpn]);
+				swapSlots[vpn] = -1;
+			}
+		}
+
+		UserKernel.lockFreePhyPages.release();
+	}
+
+	/**
+	 * Write page <i>vpn</i>, held in physical page <i>ppn</i>, to swap. The
+	 * page keeps its slot if it has one, and otherwise goes next to the page
+	 * before or after it, if either is in swap.
+	 */
+	private void swapOut(int vpn, int ppn) {
+		if (swapSlots[vpn] >= 0) {
+			VMKernel.swap.write(swapSlots[vpn], ppn);
+			return;
+		}
+
+		int near = -1;
+		if (vpn > 0 && swapSlots[vpn - 1] >= 0)
+			near = swapSlots[vpn - 1] + 1;
+		else if (vpn + 1 < numPages && swapSlots[vpn + 1] > 0)
+			near = swapSlots[vpn + 1] - 1;
+
+		int slot = VMKernel.swap.allocate(near);
+		VMKernel.swap.write(slot, ppn);
+		swapSlots[vpn] = slot;
+	}
+
+	/**
+	 * Read page <i>vpn</i> from swap into physical page <i>ppn</i>. The page
+	 * keeps its slot, so until it is written to it is clean and can be
+	 * evicted without writing it out again.
+	 */
+	private void swapIn(int vpn, int ppn) {
+		Lib.assertTrue(swapSlots[vpn] >= 0);
+
+		VMKernel.swap.read(swapSlots[vpn], ppn);
+		pageTable[vpn].dirty = false;
+	}
+
+	/**
+	 * Map up to <tt>faultAhead</tt> of the pages that follow page <i>spn</i>
+	 * of <i>section</i>, loading them in a single request. Only pages that
+	 * have never been loaded are taken, and only into physical pages beyond
+	 * the cleaner's reserve. The caller holds
+	 * <tt>UserKernel.lockFreePhyPages</tt>.
+	 */
+	private void loadAround(CoffSection section, int spn) {
+		int vpn = section.getFirstVPN() + spn;
+
+		int count = 0;
+		while (count < faultAhead && spn + count + 1 < section.getLength()) {
+			int page = vpn + count + 1;
+			if (pageTable[page].valid || swapSlots[page] >= 0)
+				break;
+
+			count++;
+		}
+
+		int[] ppns = allocateAround(vpn, count);
+		if (ppns.length == 0)
+			return;
+
+		section.loadPages(spn + 1, ppns, ppns.length);
+
+		for (int i = 0; i < ppns.length; i++) {
+			TranslationEntry te = pageTable[vpn + i + 1];
+			te.readOnly = section.isReadOnly();
+			te.valid = true;
+		}
+	}
+
+	/**
+	 * Map up to <tt>faultAhead</tt> of the pages that follow page
+	 * <i>vpn</i> and are in the slots that follow its slot, reading them in
+	 * a single request. The caller holds <tt>UserKernel.lockFreePhyPages</tt>.
+	 */
+	private void swapInAround(int vpn) {
+		int slot = swapSlots[vpn];
+
+		int count = 0;
+		while (count < faultAhead && vpn + count + 1 < numPages) {
+			int page = vpn + count + 1;
+			if (pageTable[page].valid || swapSlots[page] != slot + count + 1)
+				break;
+
+			count++;
+		}
+
+		int[] ppns = allocateAround(vpn, count);
+		if (ppns.length == 0)
+			return;
+
+		VMKernel.swap.read(slot + 1, ppns, ppns.length);
+
+		for (int i = 0; i < ppns.length; i++) {
+			TranslationEntry te = pageTable[vpn + i + 1];
+			te.dirty = false;
+			te.valid = true;
+		}
+	}
+
+	/**
+	 * Allocate physical pages for up to <i>count</i> of the pages that follow
+	 * page <i>vpn</i>, leaving the cleaner's reserve free, and enter them in
+	 * the inverted page table as prefetched. The pages are left invalid.
+	 *
+	 * @return the physical pages, one for each page following <i>vpn</i>.
+	 */
+	private int[] allocateAround(int vpn, int count) {
+		count = Math.min(count, UserKernel.freePhyPages.numFree()
+				- VMKernel.cleanerLowWater);
+		if (count <= 0)
+			return new int[0];
+
+		int[] ppns = new int[count];
+		UserKernel.freePhyPages.allocate(ppns);
+
+		for (int i = 0; i < count; i++) {
+			TranslationEntry te = pageTable[vpn + i + 1];
+			te.ppn = ppns[i];
+			te.used = false;
+
+			InvertedPageTable entry = VMKernel.ipt[ppns[i]];
+			entry.process = this;
+			entry.ppn = ppns[i];
+			entry.vpn = vpn + i + 1;
+			entry.te = te;
+			entry.prefetched = true;
+		}
+
+		return ppns;
+	}
+
+	/**
+	 * Called as the clock hand reaches a resident page, before its used bit
+	 * is cleared. If the page was brought in by fault-around, bring in one
+	 * more page next time if it has been used since, or half as many if not.
+	 * At least one page is always brought in, so that use can still be seen.
+	 */
+	static void clockPassed(InvertedPageTable entry) {
+		if (!entry.prefetched)
+			return;
+
+		entry.prefetched = false;
+
+		VMProcess process = entry.process;
+		if (entry.te.used || entry.te.dirty)
+			process.faultAhead = Math.min(process.faultAhead + 1,
+					VMKernel.faultAround - 1);
+		else
+			process.faultAhead = Math.max(process.faultAhead / 2, 1);
+	}
+
+	/**
+	 * Give the dirty pages held in physical pages <i>ppns</i> a run of
+	 * consecutive swap slots, with each process's pages together and in
+	 * order, giving up any slots they had before. <i>ppns</i> is sorted into
+	 * the order of the slots.
+	 *
+	 * @return the first slot of the run.
+	 */
+	static int assignSwapRun(int[] ppns, int count) {
+		for (int i = 1; i < count; i++) {
+			int ppn = ppns[i];
+			InvertedPageTable entry = VMKernel.ipt[ppn];
+
+			int j = i;
+			for (; j > 0 && before(entry, VMKernel.ipt[ppns[j - 1]]); j--)
+				ppns[j] = ppns[j - 1];
+
+			ppns[j] = ppn;
+		}
+
+		for (int i = 0; i < count; i++) {
+			InvertedPageTable entry = VMKernel.ipt[ppns[i]];
+			if (entry.process.swapSlots[entry.vpn] >= 0) {
+				VMKernel.swap.free(entry.process.swapSlots[entry.vpn]);
+				entry.process.swapSlots[entry.vpn] = -1;
+			}
+		}
+
+		int slot = VMKernel.swap.allocateRun(count);
+		for (int i = 0; i < count; i++) {
+			InvertedPageTable entry = VMKernel.ipt[ppns[i]];
+			entry.process.swapSlots[entry.vpn] = slot + i;
+		}
+
+		return slot;
 	}
 	
 	/**
 	 * Clock Algorithm
-	 * @return
+	 * @return the physical page to evict, or <tt>-1</tt> if every page was
+	 * pinned and the caller must check again for free pages, since some may
+	 * have been freed while it waited.
 	 */
 	protected int clockAlgorithm() {
 		//VMKernel.clockLock.acquire();
@@ -66,12 +294,19 @@ public class VMProcess extends UserProcess {
 		//int allPinned = 1;
 		int temp = 0; 
 		while(true){
-			if(VMKernel.ipt[VMKernel.swapPage].pinned == false){
+			if(VMKernel.ipt[VMKernel.swapPage].pinCount == 0){
 //				VMKernel.allPinned = 0;
 				//VMKernel.clockLock.release();
 				
 				temp = VMKernel.swapPage;
 				VMKernel.swapPage = (VMKernel.swapPage + 1 ) % (Machine.processor().getNumPhysPages());
+
+				// skip free pages and pages already being evicted
+				if (VMKernel.ipt[temp].te == null
+						|| !VMKernel.ipt[temp].te.valid)
+					continue;
+
+				clockPassed(VMKernel.ipt[temp]);
 				
 				if(VMKernel.ipt[temp].te.used == false) {
 					return temp;
@@ -81,7 +316,7 @@ public class VMProcess extends UserProcess {
 				}				
 			}
 		 
-			if(VMKernel.ipt[VMKernel.swapPage].pinned == true){
+			if(VMKernel.ipt[VMKernel.swapPage].pinCount > 0){
 				VMKernel.swapPage = (VMKernel.swapPage + 1) % (Machine.processor().getNumPhysPages());
 //				VMKernel.allPinned = 1;
 //				VMKernel.swapPage++;
@@ -91,836 +326,234 @@ public class VMProcess extends UserProcess {
 //				VMKernel.allPagesPinnedCV.sleep(); // use condition variable here
 //			}
 			if(VMKernel.allPinned == Machine.processor().getNumPhysPages()) {
-				System.out.println("$$$$$$$$$$$$$");
-				VMKernel.allPagesPinnedCV.sleep(); 
+				waitForUnpinned();
+				return -1;
 			}
 		}
 	}
-	
-	
-	protected void handlePaging(int vaddr) {
-		UserKernel.lockFreePhyPages.acquire();
-		Processor processor = Machine.processor();
-		int bvpage = processor.pageFromAddress(vaddr);
-		
-//		System.out.println("inside paging ");
-//		System.out.println(Machine.processor().getNumPhysPages());
-//		System.out.println(vaddr);
-		
-		int pagesLoaded = 0, vpn = 0;
-		TranslationEntry te;
-		
-		for (int s = 0; s < coff.getNumSections(); s++) {
-			CoffSection section = coff.getSection(s);
 
-			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-					+ " section (" + section.getLength() + " pages)");
+	/**
+	 * Wait until some physical page is unpinned. The caller holds
+	 * <tt>UserKernel.lockFreePhyPages</tt>, and holds
+	 * <tt>VMKernel.clockLock</tt> if it came through <tt>pinPages()</tt>.
+	 * <tt>lockFreePhyPages</tt> is given up while waiting, since unpinning
+	 * can need it, and taken back after <tt>clockLock</tt>, which comes
+	 * first.
+	 */
+	private void waitForUnpinned() {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+
+		boolean pinning = VMKernel.clockLock.isHeldByCurrentThread();
 
-			for (int i = 0; i < section.getLength(); i++) {
-				vpn = section.getFirstVPN() + i;
-				
-				if(vpn == bvpage) {
-					te = pageTable[vpn];
-					
-					int phyIndex = -1;
-					if(UserKernel.phyPages.isEmpty()) {
-						phyIndex = clockAlgorithm(); // B's ppn, this -> current A
-						int spn = -1;
-						int evictedVPN = VMKernel.ipt[phyIndex].vpn;   // B's vpn
-						VMProcess evictedProcess = VMKernel.ipt[phyIndex].process;   // B is evicted
-//						evictedProcess.pageTable[evictedVPN].ppn = phyIndex;  // TAKE NOTE: VERY IMP
-						
-						evictedProcess.pageTable[evictedVPN].valid = false;
-						
-						te.ppn = phyIndex;
-						te.valid = true;
-						te.used = true;
-						
-						VMKernel.ipt[phyIndex].process = this;
-						VMKernel.ipt[phyIndex].ppn = phyIndex;
-						VMKernel.ipt[phyIndex].vpn = vpn;
-						VMKernel.ipt[phyIndex].te = te;
-												
-						if (evictedProcess.pageTable[evictedVPN].dirty) {
-							if (!VMKernel.swapList.isEmpty()) {
-								spn = VMKernel.swapList.removeFirst();
-							}
-							
-							else {
-								spn = VMKernel.totalSPNCount++;
-							}
-//							VMKernel.swapFile.write(spn * pageSize, processor.getMemory(), phyIndex * pageSize, pageSize);
-							VMKernel.swapFile.write(Processor.makeAddress(spn, 0), processor.getMemory(), Processor.makeAddress(phyIndex, 0) , pageSize);
-							evictedProcess.pageTable[evictedVPN].vpn = spn;
-						}
-					}
-
-					else {
-						phyIndex = UserKernel.phyPages.removeFirst();
-						te.ppn = phyIndex;
-						te.valid = true;
-						te.used = true;
-						
-						VMKernel.ipt[phyIndex].process = this;
-						VMKernel.ipt[phyIndex].ppn = phyIndex;
-						VMKernel.ipt[phyIndex].vpn = vpn;
-						VMKernel.ipt[phyIndex].te = te;
-					}
-					
-					
-					// loading started (black penguins ) -- lazy loading
-					if (!te.dirty) {
-						if(section.isReadOnly()) {
-							te.readOnly = true;
-						}
-						section.loadPage(i, phyIndex);	
-						pagesLoaded++;
-					}
-					
-					else {
-//						int pageNumber = te.ppn;
-						te.dirty = true;
-//						VMKernel.swapFile.read(te.vpn * pageSize, processor.getMemory(), pageNumber * pageSize , pageSize);
-						VMKernel.swapFile.read(Processor.makeAddress(te.vpn, 0), processor.getMemory(), Processor.makeAddress(te.ppn, 0) , pageSize);
-						VMKernel.swapList.add(te.vpn);
-						
-						// ADDED LATE NIGHT 
-//						te.vpn = vpn;
-					}
-				}
-			}
-		}
-		
-		// Stack
-		for (int i = 0; i < (numPages - pagesLoaded); i++) {
-			vpn = vpn + 1;
-			if(vpn == bvpage) {
-				te = pageTable[vpn];
-				
-				int phyIndex = -1;
-				if(UserKernel.phyPages.isEmpty()) {
-					phyIndex = clockAlgorithm(); // B's ppn, this -> current A
-					int spn = -1;
-					int evictedVPN = VMKernel.ipt[phyIndex].vpn;   // B's vpn
-					VMProcess evictedProcess = VMKernel.ipt[phyIndex].process;   // B is evicted
-//					evictedProcess.pageTable[evictedVPN].ppn = phyIndex;  // TAKE NOTE: VERY IMP
-					
-					evictedProcess.pageTable[evictedVPN].valid = false;
-					
-					te.ppn = phyIndex;
-					te.valid = true;
-					te.used = true;
-					
-					VMKernel.ipt[phyIndex].process = this;
-					VMKernel.ipt[phyIndex].ppn = phyIndex;
-					VMKernel.ipt[phyIndex].vpn = vpn;
-					VMKernel.ipt[phyIndex].te = te;
-					
-					if (evictedProcess.pageTable[evictedVPN].dirty) {
-						if (!VMKernel.swapList.isEmpty()) {
-							spn = VMKernel.swapList.removeFirst();
-						}
-						
-						else {
-							spn = VMKernel.totalSPNCount++;
-						}
-//						VMKernel.swapFile.write(spn * pageSize, processor.getMemory(), phyIndex * pageSize, pageSize);
-						VMKernel.swapFile.write(Processor.makeAddress(spn, 0), processor.getMemory(), Processor.makeAddress(phyIndex, 0) , pageSize);
-						evictedProcess.pageTable[evictedVPN].vpn = spn;
-					}
-				}
-				
-				else {
-					phyIndex = UserKernel.phyPages.removeFirst();
-					te.ppn = phyIndex;
-					te.valid = true;
-					te.used = true;
-					
-					VMKernel.ipt[phyIndex].process = this;
-					VMKernel.ipt[phyIndex].ppn = phyIndex;
-					VMKernel.ipt[phyIndex].vpn = vpn;
-					VMKernel.ipt[phyIndex].te = te;
-				}
-				
-				// lazy loading
-				if (!te.dirty) {
-					byte [] zeros = new byte[pageSize];
-					for(int j =0; i < pageSize; i++) {
-						zeros[j] = 0;
-					}	
-					System.arraycopy(zeros, 0 , processor.getMemory(), te.ppn * pageSize, pageSize);		
-				}
-				
-				else {
-//					int pageNumber = te.ppn;
-					te.dirty = true;
-//					VMKernel.swapFile.read(te.vpn * pageSize, processor.getMemory(), pageNumber * pageSize , pageSize);
-					VMKernel.swapFile.read(Processor.makeAddress(te.vpn, 0), processor.getMemory(), Processor.makeAddress(te.ppn, 0) , pageSize);
-					VMKernel.swapList.add(te.vpn);
-				}
-				
-			}
-		}
 		UserKernel.lockFreePhyPages.release();
-		
-//		System.out.println(Arrays.toString(pageTable));
-//		for (int i = 0; i < pageTable.length; i++) {
-//			System.out.printf("vpn: %d, ppn: %d,", pageTable[i].vpn, pageTable[i].ppn);
-//			System.out.println("VPN: "+ pageTable[i].vpn);
-//			System.out.println("PPN: " +  pageTable[i].ppn);
-//			System.out.println(pageTable[i].vpn + page);
-//		}
+		if (!pinning)
+			VMKernel.clockLock.acquire();
+
+		while (VMKernel.allPinned == numPhysPages)
+			VMKernel.allPagesPinnedCV.sleep();
+
+		if (!pinning)
+			VMKernel.clockLock.release();
+		UserKernel.lockFreePhyPages.acquire();
 	}
 	
 	
-	
-	
-	
-	/*
-	@Override
-	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0
-				&& offset + length <= data.length);
-		
-		VMKernel.clockLock.acquire();
-		byte[] memory = Machine.processor().getMemory();
-
-//		|| vaddr >= memory.length
-		
-		if (vaddr < 0) {
-			VMKernel.clockLock.release();
-			return 0;
-		}
-		
-		int paddr = 0;
-		int vpn = Processor.pageFromAddress(vaddr);
-		int initialOffset = Processor.offsetFromAddress(vaddr);
-		
-		if(vpn >= pageTable.length) {
-			VMKernel.clockLock.release();
-			return 0;
-		}
-		
-		TranslationEntry te = pageTable[vpn];
-		
-		if(te.valid == false) {
-			handlePaging(vaddr);
-			if(pageTable[vpn].valid) {
-				te = pageTable[vpn];
-				
-				if(te.readOnly == true) {
-					VMKernel.clockLock.release();
-					return 0;
-				}
-				te.used = true;
-				VMKernel.ipt[te.ppn].pinned = true;
+	/**
+	 * Free at least one physical page, by evicting the page chosen by the
+	 * clock algorithm. If <tt>VMKernel.pageOutCluster</tt> is more than 1,
+	 * keep going round the clock for up to that many pages in all, taking
+	 * only dirty pages that haven't been used since the hand last passed.
+	 * The dirty pages are written to consecutive swap slots in a single
+	 * request, so the faults that follow find free pages without any I/O.
+	 * If every page is pinned, wait for one to be unpinned and return without
+	 * freeing any; the caller checks for free pages again.
+	 */
+	protected void pageOut() {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+
+		int victim = clockAlgorithm();
+		if (victim < 0)
+			return;
+
+		int[] victims = new int[VMKernel.pageOutCluster];
+		int count = 0;
+
+		victims[count++] = victim;
+		VMKernel.ipt[victims[0]].te.valid = false;
+
+		for (int i = 0; i < numPhysPages && count < victims.length; i++) {
+			InvertedPageTable entry = VMKernel.ipt[VMKernel.swapPage];
+			VMKernel.swapPage = (VMKernel.swapPage + 1) % numPhysPages;
+
+			if (entry.pinCount > 0 || entry.te == null || !entry.te.valid)
+				continue;
+
+			clockPassed(entry);
+			if (entry.te.used) {
+				entry.te.used = false;
 			}
-			else {
-				VMKernel.clockLock.release();
-				return 0;
+			else if (entry.te.dirty) {
+				entry.te.valid = false;
+				victims[count++] = entry.ppn;
 			}
 		}
-		
-		if (te.readOnly == true) {
-			VMKernel.clockLock.release();
-			return 0;
+
+		int[] dirty = new int[count];
+		int numDirty = 0;
+		for (int i = 0; i < count; i++) {
+			if (VMKernel.ipt[victims[i]].te.dirty)
+				dirty[numDirty++] = victims[i];
 		}
-		
-		paddr = te.ppn * pageSize + initialOffset;
-		
-		int totalWritten=0;
-		
-		for(int i=0; i < length/pageSize; i++) {
-			
-			int amount = pageSize - initialOffset;
-			System.arraycopy(data, offset, memory, paddr, amount);
-			
-			if(amount > 0) {
-				te.dirty = true;
-			}
-			
-			offset += amount;
-			totalWritten += amount;
-			
-			VMKernel.ipt[te.ppn].pinned = false;
-			VMKernel.allPagesPinnedCV.wake();
-			
-			//te.used = false;
-			vpn = vpn + 1;
-			
-			if(vpn >= pageTable.length) {
-				VMKernel.clockLock.release();
-				return totalWritten;
-			}
-			
-			te = pageTable[vpn];
-			
-			if(te.valid == false) {
-				
-				handlePaging(Processor.makeAddress(vpn, 0));
-				if(pageTable[vpn].valid) {
-					te = pageTable[vpn];
-					if(te.readOnly == true) {
-						VMKernel.clockLock.release();
-						return totalWritten;
-					}
-					te.used = true;
-					VMKernel.ipt[te.ppn].pinned = true;
-				}
-				else {
-					VMKernel.clockLock.release();
-					return totalWritten;
-				}
-			}
-			
-			if (te.readOnly == true) {
-				VMKernel.clockLock.release();
-				return totalWritten;
-			}
-			
-			initialOffset = 0;
-			paddr = te.ppn * pageSize;
-			VMKernel.ipt[te.ppn].pinned = true;
-			
+
+		if (numDirty == 1) {
+			InvertedPageTable entry = VMKernel.ipt[dirty[0]];
+			entry.process.swapOut(entry.vpn, entry.ppn);
 		}
-			
-		if(te.valid == true && te.readOnly == false) {
-			
-			int amount = length - totalWritten;		
-			System.arraycopy(data, offset, memory, paddr, amount);
-			if(amount > 0) {
-				te.dirty = true;
-			}
-			
-			totalWritten += amount;
-			//te.used = false;
-			VMKernel.ipt[te.ppn].pinned = false;
-			VMKernel.allPagesPinnedCV.wake();
+		else if (numDirty > 1) {
+			int slot = assignSwapRun(dirty, numDirty);
+			VMKernel.swap.write(slot, dirty, numDirty);
 		}
-		VMKernel.clockLock.release();
-		return totalWritten;
+
+		for (int i = 0; i < count; i++)
+			VMKernel.ipt[victims[i]].te = null;
+
+		UserKernel.freePhyPages.free(victims, count);
 	}
-	*/
-	
-	
-	@Override
-	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0
-				&& offset + length <= data.length);
- 
-		VMKernel.clockLock.acquire();
-		byte[] memory = Machine.processor().getMemory();
- 
-//		|| vaddr >= memory.length
- 
-		if (vaddr < 0) {
-			VMKernel.clockLock.release();
-			return 0;
-		}
- 
-		int paddr = 0;
-		int vpn = Processor.pageFromAddress(vaddr);
-		int initialOffset = Processor.offsetFromAddress(vaddr);
- 
-		if(vpn >= pageTable.length) {
-			VMKernel.clockLock.release();
-			return 0;
-		}
- 
+
+	private static boolean before(InvertedPageTable a, InvertedPageTable b) {
+		if (a.process != b.process)
+			return a.process.processID < b.process.processID;
+
+		return a.vpn < b.vpn;
+	}
+
+	/**
+	 * Bring in the page holding virtual address <i>vaddr</i>, from swap if it
+	 * has a slot, otherwise from its COFF section, or zero-filled if it is a
+	 * stack or argument page. Pages that follow it are brought in too, by
+	 * fault-around.
+	 *
+	 * @return <tt>true</tt> if the page cleaner was woken.
+	 */
+	protected boolean handlePaging(int vaddr) {
+		UserKernel.lockFreePhyPages.acquire();
+		int vpn = Machine.processor().pageFromAddress(vaddr);
+		Lib.assertTrue(vpn >= 0 && vpn < numPages);
+
 		TranslationEntry te = pageTable[vpn];
- 
-		if(te.valid == false) {
-			handlePaging(vaddr);
-			if(pageTable[vpn].valid) {
-				te = pageTable[vpn];
-				if(te.readOnly == true) {
-					VMKernel.clockLock.release();
-					return 0;
-				}
-//				te.used = true;
-//				VMKernel.ipt[te.ppn].pinned = true;
-			}
-			else {
-				VMKernel.clockLock.release();
-				return 0;
-			}
-		}
-		
-		
-		paddr = te.ppn * pageSize + initialOffset;
-		
+
+		while (UserKernel.freePhyPages.isEmpty())
+			pageOut();
+
+		int phyIndex = UserKernel.freePhyPages.allocate();
+		te.ppn = phyIndex;
+		te.valid = true;
 		te.used = true;
-		VMKernel.ipt[te.ppn].pinned = true;
-		VMKernel.allPinned++;
-		
-		int totalWritten=0;
- 
-		for(int i=0; i < length/pageSize; i++) {
- 
-			int amount = pageSize - initialOffset;
-			System.arraycopy(data, offset, memory, paddr, amount);
- 
-			if(amount > 0) {
-				te.dirty = true;
-			}
- 
-			offset += amount;
-			totalWritten += amount;
- 
-			VMKernel.ipt[te.ppn].pinned = false;
-			VMKernel.allPinned--;
-			VMKernel.allPagesPinnedCV.wake();
- 
-			vpn = vpn + 1;
- 
-			if(vpn >= pageTable.length) {
-				VMKernel.clockLock.release();
-				return totalWritten;
-			}
- 
-			te = pageTable[vpn];
- 
-			if(te.valid == false) {
-				handlePaging(Processor.makeAddress(vpn, 0));
-				if(pageTable[vpn].valid) {
-					te = pageTable[vpn];
-					if(te.readOnly == true) {
-						VMKernel.clockLock.release();
-						return totalWritten;
-					}
-//					te.used = true;					
-//					VMKernel.ipt[te.ppn].pinned = true;
-				}
-				else {
-					VMKernel.clockLock.release();
-					return totalWritten;
-				}
-			}
- 
-			initialOffset = 0;
-			paddr = te.ppn * pageSize;
-//			te.used = true;
-//			VMKernel.ipt[te.ppn].pinned = true;
-			te.used = true;
-			VMKernel.ipt[te.ppn].pinned = true;
-			VMKernel.allPinned++;
-		}	
-		if(te.valid == true && te.readOnly == false) {
-			//only possible when initialOffset is non zero
-			if(length - totalWritten > pageSize - initialOffset ) {
-				int amount = pageSize - initialOffset;
-				System.arraycopy(data, offset, memory, paddr, amount);				
-				if(amount > 0) {
-					te.dirty = true;
-				}
- 
-				offset += amount;
-				totalWritten += amount;
- 
-				VMKernel.ipt[te.ppn].pinned = false;
-				VMKernel.allPinned--;
-				VMKernel.allPagesPinnedCV.wake();
- 
-				vpn = vpn + 1;
- 
-				if(vpn >= pageTable.length) {
-					VMKernel.clockLock.release();
-					return totalWritten;
-				}
- 
-				te = pageTable[vpn];
- 
-				if(te.valid == false) {
- 
-					handlePaging(Processor.makeAddress(vpn, 0));
-					if(pageTable[vpn].valid) {
-						te = pageTable[vpn];
-						if(te.readOnly == true) {
-							VMKernel.clockLock.release();
-							return totalWritten;
-						}
-//						te.used = true;
-//						VMKernel.ipt[te.ppn].pinned = true;
-					}
-					else {
-						VMKernel.clockLock.release();
-						return totalWritten;
-					}
-				}
- 
-				initialOffset = 0;
-				paddr = te.ppn * pageSize;
-//				te.used = true;
-//				VMKernel.ipt[te.ppn].pinned = true;
-				te.used = true;
-				VMKernel.ipt[te.ppn].pinned = true;
-				VMKernel.allPinned++;
- 
-				amount = length - totalWritten;		
-				System.arraycopy(data, offset, memory, paddr, amount);
-				if(amount > 0) {
-					te.dirty = true;
-				}
- 
-				totalWritten += amount;
-				VMKernel.ipt[te.ppn].pinned = false;
-				VMKernel.allPinned--;
-				VMKernel.allPagesPinnedCV.wake();
-			}
-			else {
-				int amount = length - totalWritten;		
-				System.arraycopy(data, offset, memory, paddr, amount);
-				if(amount > 0) {
-					te.dirty = true;
-				}
- 
-				totalWritten += amount;
-				VMKernel.ipt[te.ppn].pinned = false;
-				VMKernel.allPinned--;
-				VMKernel.allPagesPinnedCV.wake();
-			}
-		}
-		VMKernel.clockLock.release();
-		return totalWritten;			
-	}
-	
-	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0
-				&& offset + length <= data.length);
- 
-		VMKernel.clockLock.acquire();
-		byte[] memory = Machine.processor().getMemory();
- 
-		if (vaddr < 0)
-		{
-			VMKernel.clockLock.release();
-			return 0;
+
+		VMKernel.ipt[phyIndex].process = this;
+		VMKernel.ipt[phyIndex].ppn = phyIndex;
+		VMKernel.ipt[phyIndex].vpn = vpn;
+		VMKernel.ipt[phyIndex].te = te;
+		VMKernel.ipt[phyIndex].prefetched = false;
+
+		CoffSection section = pageSections[vpn];
+		if (swapSlots[vpn] >= 0) {
+			swapIn(vpn, phyIndex);
+			swapInAround(vpn);
 		}
-		int paddr = 0;
-		int vpn = Processor.pageFromAddress(vaddr);
-		int initialOffset = Processor.offsetFromAddress(vaddr);
- 
-		if(vpn >= pageTable.length) {
-			VMKernel.clockLock.release();
-			return 0;
+		else if (section != null) {
+			int spn = vpn - section.getFirstVPN();
+
+			Lib.debug(dbgVM, "\tloading " + section.getName() + " page "
+					+ spn);
+
+			te.readOnly = section.isReadOnly();
+			section.loadPage(spn, phyIndex);
+			loadAround(section, spn);
 		}
- 
-		TranslationEntry te = pageTable[vpn];
- 
-		if(te.valid == false) {
-			handlePaging(vaddr);
-			if(pageTable[vpn].valid) {
-				te = pageTable[vpn];
-//				VMKernel.ipt[te.ppn].pinned = true;
-			}
-			else {
-				VMKernel.clockLock.release();
-				return 0;
-			}
+		else {
+			Arrays.fill(Machine.processor().getMemory(), phyIndex * pageSize,
+					(phyIndex + 1) * pageSize, (byte) 0);
 		}
-		
-		te.used = true;
-		VMKernel.ipt[te.ppn].pinned = true;
-		VMKernel.allPinned++;
-		
-		paddr = te.ppn * pageSize + initialOffset;
-		int totalRead = 0;
- 
-		for(int i = 0; i < length/pageSize; i++) { 
- 
-			int amount = pageSize - initialOffset;
-			System.arraycopy(memory, paddr, data, offset, amount);
-			offset += amount;
-			totalRead += amount;
- 
-			VMKernel.ipt[te.ppn].pinned = false;
-			VMKernel.allPinned--;
-			VMKernel.allPagesPinnedCV.wake();
- 
-			vpn = vpn + 1;
- 
-			if(vpn >= pageTable.length) {
-				VMKernel.clockLock.release();
-				return totalRead;
-			}
- 
-			te = pageTable[vpn];
- 
-			if(te.valid == false) {
-				handlePaging(Processor.makeAddress(vpn, 0));  // te.vpn originally is wrong as it is spn now
-				if(pageTable[vpn].valid) {
-					te = pageTable[vpn];
-//					VMKernel.ipt[te.ppn].pinned = true;
-				}
-				else {
-					VMKernel.clockLock.release();
-					return totalRead;
+
+		boolean cleaning = VMKernel.wakeCleaner();
+		UserKernel.lockFreePhyPages.release();
+
+		return cleaning;
+	}
+
+	/**
+	 * Fault in any of the pages that aren't resident, and pin them so that
+	 * they can't be evicted while the transfer is in progress.
+	 *
+	 * <p>
+	 * <tt>VMKernel.clockLock</tt> is only taken once a page has to be faulted
+	 * in. Until then nothing here can block or let the clock advance, so no
+	 * other thread can run, and a batch that is already resident is pinned
+	 * without any lock round trip.
+	 */
+	protected int pinPages(int vpn, int count, boolean writing,
+			TranslationEntry[] pages, int start) {
+		boolean locked = false;
+
+		int numPinned = 0;
+		while (numPinned < count) {
+			int page = vpn + numPinned;
+			if (!pageTable[page].valid) {
+				if (!locked) {
+					VMKernel.clockLock.acquire();
+					locked = true;
 				}
+
+				if (!pageTable[page].valid)
+					handlePaging(Processor.makeAddress(page, 0));
 			}
- 
+
+			TranslationEntry te = pageTable[page];
+			if (!te.valid || (writing && te.readOnly))
+				break;
+
 			te.used = true;
-			initialOffset = 0;
-			paddr = te.ppn * pageSize;
-			VMKernel.ipt[te.ppn].pinned = true;
-			VMKernel.allPinned++;
-			
-		}
- 
-		if(te.valid == true) {
-			//only possible when initialOffset is non zero
-			if(length - totalRead > pageSize - initialOffset ) {
-				int amount = pageSize - initialOffset;
-				System.arraycopy(memory, paddr, data, offset, amount);
-				offset +=amount;
-				totalRead += amount;
-				VMKernel.ipt[te.ppn].pinned = false;
-				VMKernel.allPinned--;
-				VMKernel.allPagesPinnedCV.wake();
- 
-				vpn = vpn+1;
- 
-				if(vpn >= pageTable.length) {
-					VMKernel.clockLock.release();
-					return totalRead;
-				}
- 
-				te = pageTable[vpn];
- 
-				if(te.valid == false) {
-					handlePaging(Processor.makeAddress(vpn, 0));  // te.vpn originally is wrong as it is spn now
-					if(pageTable[vpn].valid) {
-						te = pageTable[vpn];
-//						VMKernel.ipt[te.ppn].pinned = true;
-					}
-					else {
-						VMKernel.clockLock.release();
-						return totalRead;
-					}
-				}
- 
-				te.used = true;
-				initialOffset = 0;
-				paddr = te.ppn * pageSize;
-				VMKernel.ipt[te.ppn].pinned = true;
+			// two buffers of one transfer can share a page
+			if (VMKernel.ipt[te.ppn].pinCount++ == 0)
 				VMKernel.allPinned++;
-				
-				amount = length - totalRead;
-				System.arraycopy(memory, paddr, data, offset, amount);
-				totalRead += amount;
- 
-				VMKernel.ipt[te.ppn].pinned = false;
-				VMKernel.allPinned--;
-				VMKernel.allPagesPinnedCV.wake();
- 
-			}
-			else {
- 
-				int amount = length - totalRead;
-				System.arraycopy(memory, paddr, data, offset, amount);
-				totalRead += amount; 
-				VMKernel.ipt[te.ppn].pinned = false;
-				VMKernel.allPinned--;
-				VMKernel.allPagesPinnedCV.wake();
-			}
-		}
-		VMKernel.clockLock.release();
-		return totalRead;
-		}
-	
-	
-	/*
-	@Override 
-	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0
-				&& offset + length <= data.length);
-		
-		VMKernel.clockLock.acquire();
-		byte[] memory = Machine.processor().getMemory();
-	
-		if (vaddr < 0)
-		{
-			VMKernel.clockLock.release();
-			return 0;
+
+			pages[start + numPinned++] = te;
 		}
-		
-		int paddr = 0;
-		int vpn = Processor.pageFromAddress(vaddr);
-		int initialOffset = Processor.offsetFromAddress(vaddr);
-		
-		if(vpn > pageTable.length) {
+
+		if (locked)
 			VMKernel.clockLock.release();
-			return 0;
-		}
-		
-		TranslationEntry te = pageTable[vpn];
-		
-		if(te.valid == false) {
-			handlePaging(vaddr);
-			if(pageTable[vpn].valid) {
-				te = pageTable[vpn];
-				te.used = true;
-				VMKernel.ipt[te.ppn].pinned = true;
-			}
-			else {
-				VMKernel.clockLock.release();
-				return 0;
-			}
-		}
-		
-		paddr = te.ppn * pageSize + initialOffset;
-		
-		//te.used = true;
-		int totalRead = 0;
-		
-		for(int i = 0; i < length/pageSize; i++) { 
-			
-			int amount = pageSize - initialOffset;
-			System.arraycopy(memory, paddr, data, offset, amount);
-			offset += amount;
-			totalRead += amount;
-			
-			VMKernel.ipt[te.ppn].pinned = false;
-			VMKernel.allPagesPinnedCV.wake();
-			
-			//te.used = false;
-			vpn = vpn + 1;
-			
-			if(vpn > pageTable.length) {
-				VMKernel.clockLock.release();
-				return totalRead;
-			}
-			
-			te = pageTable[vpn];
-			
-			if(te.valid == false) {
-				handlePaging(Processor.makeAddress(te.vpn, 0));
-				if(pageTable[vpn].valid) {
-					te = pageTable[vpn];
-					te.used = true;
-					VMKernel.ipt[te.ppn].pinned = true;
-				}
-				else {
-					VMKernel.clockLock.release();
-					return totalRead;
-				}
-			}
-			
-			initialOffset = 0;
-			paddr = te.ppn * pageSize;
-			//te.used = true;
-			VMKernel.ipt[te.ppn].pinned = true;
-			
-		}
-		
-		if(te.valid == true) {
-			int amount = length - totalRead;
-			System.arraycopy(memory, paddr, data, offset, amount);
-			totalRead += amount;
-			
-			VMKernel.ipt[te.ppn].pinned = false;
-			VMKernel.allPagesPinnedCV.wake();
-		}
-		VMKernel.clockLock.release();
-		return totalRead;
+		return numPinned;
 	}
-	*/
-	
-	
-	/*
-	@Override 
-	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0
-				&& offset + length <= data.length);
-		
-		VMKernel.clockLock.acquire();
-		byte[] memory = Machine.processor().getMemory();
-		
-//		|| vaddr >= memory.length
-		if (vaddr < 0)
-		{
-			VMKernel.clockLock.release();
-			return 0;
-		}
-		int paddr = 0;
-		int vpn = Processor.pageFromAddress(vaddr);
-		int initialOffset = Processor.offsetFromAddress(vaddr);
-		
-		if(vpn >= pageTable.length) {
-			VMKernel.clockLock.release();
-			return 0;
-		}
-		
-		TranslationEntry te = pageTable[vpn];
-		
-		if(te.valid == false) {
-			handlePaging(vaddr);
-			if(pageTable[vpn].valid) {
-				te = pageTable[vpn];
-				VMKernel.ipt[te.ppn].pinned = true;
-			}
-			else {
-				VMKernel.clockLock.release();
-				return 0;
-			}
-		}
-		te.used = true;
-		paddr = te.ppn * pageSize + initialOffset;
-		
-		//te.used = true;
-		int totalRead = 0;
-		
-		for(int i = 0; i < length/pageSize; i++) { 
-			
-			int amount = pageSize - initialOffset;
-			System.arraycopy(memory, paddr, data, offset, amount);
-			offset += amount;
-			totalRead += amount;
-			
-			VMKernel.ipt[te.ppn].pinned = false;
-			VMKernel.allPagesPinnedCV.wake();
-			
-			vpn = vpn + 1;
-			
-			if(vpn >= pageTable.length) {
-				VMKernel.clockLock.release();
-				return totalRead;
-			}
-			
-			te = pageTable[vpn];
-			
-			if(te.valid == false) {
-				handlePaging(Processor.makeAddress(vpn, 0));  // te.vpn originally is wrong as it is spn now
-				if(pageTable[vpn].valid) {
-					te = pageTable[vpn];
-					VMKernel.ipt[te.ppn].pinned = true;
-				}
-				else {
-					VMKernel.clockLock.release();
-					return totalRead;
-				}
+
+	/**
+	 * Unpin the pages, marking them dirty if they were written. As in
+	 * <tt>pinPages()</tt>, nothing here blocks, so
+	 * <tt>VMKernel.clockLock</tt> is only taken to wake the threads waiting
+	 * for an unpinned frame, which can only be waiting while every frame is
+	 * pinned.
+	 */
+	protected void unpinPages(TranslationEntry[] pages, int count,
+			boolean writing) {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		boolean waking = false;
+
+		for (int i = 0; i < count; i++) {
+			if (writing)
+				pages[i].dirty = true;
+
+			if (--VMKernel.ipt[pages[i].ppn].pinCount == 0) {
+				if (VMKernel.allPinned-- == numPhysPages)
+					waking = true;
 			}
-			
-			te.used = true;
-			initialOffset = 0;
-			paddr = te.ppn * pageSize;
-			//te.used = true;
-			VMKernel.ipt[te.ppn].pinned = true;
-			
 		}
-		
-		if(te.valid == true) {
-			int amount = length - totalRead;
-			System.arraycopy(memory, paddr, data, offset, amount);
-			totalRead += amount;
-//			te.used = false;
-			
-			VMKernel.ipt[te.ppn].pinned = false;
-			VMKernel.allPagesPinnedCV.wake();
+
+		if (waking) {
+			VMKernel.clockLock.acquire();
+			VMKernel.allPagesPinnedCV.wakeAll();
+			VMKernel.clockLock.release();
 		}
-		VMKernel.clockLock.release();
-		return totalRead;
 	}
-	*/
 
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
@@ -935,7 +568,10 @@ public class VMProcess extends UserProcess {
 		switch (cause) {
 		case Processor.exceptionPageFault:
 			int badaddr = processor.readRegister(Processor.regBadVAddr);
-			handlePaging(badaddr);
+			// the timer doesn't preempt, so let the cleaner run; only here,
+			// since pinPages() faults pages in holding clockLock
+			if (handlePaging(badaddr))
+				KThread.yield();
 			break;
 		default:
 			super.handleException(cause);
@@ -943,6 +579,24 @@ public class VMProcess extends UserProcess {
 		}
 	}
 
+	/**
+	 * The COFF section holding each page, or <tt>null</tt> for the stack and
+	 * argument pages, which start out zeroed.
+	 */
+	private CoffSection[] pageSections;
+
+	/**
+	 * The swap slot holding each page, or <tt>-1</tt> if it has none. A
+	 * page's slot holds its contents unless the page is resident and dirty.
+	 */
+	int[] swapSlots;
+
+	/** The number of this process's pages the cleaner is writing out. */
+	int cleaning = 0;
+
+	/** The number of pages to bring in after a faulting page. */
+	private int faultAhead = VMKernel.faultAround - 1;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';